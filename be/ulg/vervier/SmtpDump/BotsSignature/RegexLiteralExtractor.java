@@ -0,0 +1,268 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class extracts from a signature statement regex a literal that every
+ * match of the regex contains, e.g. "HELO " from "HELO [\w.-]+\r\n". The
+ * regex is read as a sequence of atoms: the runs of literal characters are
+ * required, and so are the runs of the groups that must occur at least once,
+ * unless the group holds an alternation. A regex holding an alternation at
+ * its top level, or an inline flag (e.g. "(?i)"), has no required literal.
+ * The extraction is conservative: the constructs not understood break the
+ * current run, so that the literal returned is always required.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.BotsSignature;
+
+import java.util.List;
+import java.util.ArrayList;
+
+class RegexLiteralExtractor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The maximum length of the literal returned, longer literals being cut
+     * (a prefix of a required literal being required too) */
+    static final int MAX_LITERAL_LENGTH = 16;
+    /** The regex read */
+    private String regex;
+    /** The index of the next character of the regex read */
+    private int pos;
+    /** False if the regex holds a construct that prevents the extraction */
+    private boolean supported;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new extractor of the required literal of the given regex. */
+    RegexLiteralExtractor(String regex) {
+        this.regex = regex;
+        pos = 0;
+        supported = true;
+    }
+    
+    /** METHODS */
+    
+    /** Retrieve the longest literal required by the given regex, cut to
+     * MAX_LITERAL_LENGTH characters, or null if there is no such literal. */
+    static String requiredLiteral(String regex) {
+        if (regex == null) return null;
+        return new RegexLiteralExtractor(regex).extract();
+    }
+    
+    /** Extract the longest literal required by the regex. */
+    String extract() {
+        List<String> literals = sequence();
+        if (!supported || pos < regex.length()) return null;
+        String to_return = null;
+        for (String l: literals)
+            if (to_return == null || l.length() > to_return.length())
+                to_return = l;
+        if (to_return != null && to_return.length() > MAX_LITERAL_LENGTH)
+            to_return = to_return.substring(0, MAX_LITERAL_LENGTH);
+        return to_return;
+    }
+    
+    /** Read a sequence of atoms, up to the end of the regex or of the
+     * enclosing group, and retrieve its required literals. A sequence holding
+     * an alternation requires none. */
+    private List<String> sequence() {
+        List<String> literals = new ArrayList<String>();
+        StringBuilder run = new StringBuilder();
+        boolean alternation = false;
+        while (supported && pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == ')') break;
+            pos++;
+            int atom = -1;
+            List<String> group = null;
+            switch (c) {
+                case '|':
+                    alternation = true;
+                    break;
+                case '(':
+                    group = group();
+                    break;
+                case '[':
+                    skipClass();
+                    break;
+                case '.': case '^': case '$':
+                    break;
+                case '\\':
+                    atom = escape(run);
+                    break;
+                default:
+                    atom = c;
+                    break;
+            }
+            // a quantifier applies to the last atom read
+            int min = quantifier();
+            if (atom >= 0 && min != 0) {
+                run.append((char)atom);
+                if (min < 0) continue;
+            }
+            endRun(run, literals);
+            if (group != null && min != 0) literals.addAll(group);
+        }
+        endRun(run, literals);
+        if (alternation) literals.clear();
+        return literals;
+    }
+    
+    /** Read a group, the opening parenthesis being read, and retrieve its
+     * required literals. The lookaround groups require none. */
+    private List<String> group() {
+        boolean lookaround = false;
+        if (regex.startsWith("?", pos)) {
+            pos++;
+            if (regex.startsWith(":", pos) || regex.startsWith(">", pos) ||
+                regex.startsWith("=", pos) || regex.startsWith("!", pos)) {
+                lookaround = regex.charAt(pos) == '=' ||
+                             regex.charAt(pos) == '!';
+                pos++;
+            } else if (regex.startsWith("<=", pos) ||
+                       regex.startsWith("<!", pos)) {
+                lookaround = true;
+                pos += 2;
+            } else if (regex.startsWith("<", pos)) {
+                // named group
+                int end = regex.indexOf('>', pos);
+                if (end < 0) { supported = false; return null; }
+                pos = end + 1;
+            } else {
+                // inline flags, e.g. "(?i)" or "(?s:...)"
+                supported = false;
+                return null;
+            }
+        }
+        List<String> literals = sequence();
+        if (pos >= regex.length()) { supported = false; return null; }
+        pos++;
+        if (lookaround) literals.clear();
+        return literals;
+    }
+    
+    /** Read an escape sequence, the backslash being read, and retrieve the
+     * literal character it stands for, or -1 if it is not a literal. The
+     * characters quoted by "\Q...\E" are added to the current run, but the
+     * last one which is returned. */
+    private int escape(StringBuilder run) {
+        if (pos >= regex.length()) { supported = false; return -1; }
+        char c = regex.charAt(pos++);
+        switch (c) {
+            case 't': return '\t';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 'f': return '\f';
+            case 'a': return '\u0007';
+            case 'e': return '\u001B';
+            case 'Q': {
+                int end = regex.indexOf("\\E", pos);
+                if (end < 0) end = regex.length();
+                String quoted = regex.substring(pos, end);
+                pos = Math.min(end + 2, regex.length());
+                if (quoted.isEmpty()) return -1;
+                run.append(quoted, 0, quoted.length() - 1);
+                return quoted.charAt(quoted.length() - 1);
+            }
+            case 'x': case 'p': case 'P':
+                if (regex.startsWith("{", pos)) {
+                    int end = regex.indexOf('}', pos);
+                    if (end < 0) { supported = false; return -1; }
+                    pos = end + 1;
+                } else {
+                    pos += c == 'x' ? 2 : 1;
+                }
+                return -1;
+            case 'u': pos += 4; return -1;
+            case 'c': pos++; return -1;
+            case 'k': {
+                int end = regex.indexOf('>', pos);
+                if (end < 0) { supported = false; return -1; }
+                pos = end + 1;
+                return -1;
+            }
+            default:
+                break;
+        }
+        // back references, octal escapes and character classes (e.g. "\d")
+        if (Character.isLetterOrDigit(c)) {
+            while (Character.isDigit(c) && pos < regex.length() &&
+                   Character.isDigit(regex.charAt(pos)))
+                pos++;
+            return -1;
+        }
+        return c;
+    }
+    
+    /** Skip a character class, the opening bracket being read. The classes
+     * may be nested, e.g. "[\s&&[^\r\n]]". */
+    private void skipClass() {
+        int depth = 1;
+        // a closing bracket first in the class is a literal
+        if (regex.startsWith("^", pos)) pos++;
+        if (regex.startsWith("]", pos)) pos++;
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos++);
+            if (c == '\\') {
+                if (regex.startsWith("Q", pos)) {
+                    int end = regex.indexOf("\\E", pos);
+                    pos = end < 0 ? regex.length() : end + 2;
+                } else {
+                    pos++;
+                }
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return;
+            }
+        }
+        supported = false;
+    }
+    
+    /** Read the quantifier following an atom, if any. Return the minimum
+     * number of occurrences it allows, -1 if there is no quantifier. */
+    private int quantifier() {
+        if (pos >= regex.length()) return -1;
+        int min = -1;
+        char c = regex.charAt(pos);
+        if (c == '?' || c == '*') {
+            min = 0;
+            pos++;
+        } else if (c == '+') {
+            min = 1;
+            pos++;
+        } else if (c == '{') {
+            int end = regex.indexOf('}', pos);
+            if (end < 0) { supported = false; return -1; }
+            String bounds = regex.substring(pos + 1, end);
+            int comma = bounds.indexOf(',');
+            try {
+                min = Integer.parseInt
+                    ((comma < 0 ? bounds : bounds.substring(0, comma)).trim());
+            } catch (NumberFormatException nfe) {
+                supported = false;
+                return -1;
+            }
+            pos = end + 1;
+        }
+        // lazy and possessive quantifiers
+        if (min >= 0 && pos < regex.length() &&
+            (regex.charAt(pos) == '?' || regex.charAt(pos) == '+'))
+            pos++;
+        return min;
+    }
+    
+    /** End the current run of literal characters, adding it to the given
+     * list of literals if it is not empty. */
+    private static void endRun(StringBuilder run, List<String> literals) {
+        if (run.length() > 0) {
+            literals.add(run.toString());
+            run.setLength(0);
+        }
+    }
+    
+}
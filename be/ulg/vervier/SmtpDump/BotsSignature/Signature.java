@@ -8,6 +8,9 @@
  * This class implements a spam bot signature. It is simply a set of regular
  * expressions that must match SMTP communications between the bot and a server.
  * In addition to regex pattern matching, the TCP flags can also be checked.
+ * The statements without variables are matched by a linear-time automaton
+ * (see StatementAutomaton) if their regex allows it, the other ones by
+ * java.util.regex.
  * 
  */
 
@@ -63,6 +66,12 @@ public class Signature {
         
         /** The signature pattern to be matched */
         private Pattern pattern;
+        /** A literal that every match of the pattern contains, null if
+         * none */
+        private String literal;
+        /** The automaton matching the pattern, null if the statement contains
+         * variables or if the pattern is not supported */
+        private StatementAutomaton automaton;
         /** The list of links, i.e. pattern groups whose value is linked with
          * other statements' pattern groups. */
         private LinkedList<Link> links;
@@ -82,7 +91,12 @@ public class Signature {
                   boolean grouped,
                   boolean same_transaction) {
             this.pattern = pattern;
+            this.literal = RegexLiteralExtractor.
+                requiredLiteral(pattern.pattern());
             this.links = links;
+            // the values of the variables are captured by java.util.regex
+            this.automaton = links == null ?
+                StatementAutomaton.compile(pattern) : null;
             this.grouped = grouped;
             this.same_transaction = same_transaction;
         }
@@ -106,6 +120,17 @@ public class Signature {
         /** Retrieve the statement pattern. */
         Pattern getPattern() { return pattern; }
         
+        /** Retrieve the literal required by the statement pattern, null if
+         * none. */
+        String getLiteral() { return literal; }
+        
+        /** Return true if the given SMTP statement holds a match of the
+         * statement pattern. */
+        boolean find(CharSequence smtp_stmt) {
+            return automaton != null ? automaton.find(smtp_stmt) :
+                pattern.matcher(smtp_stmt).find();
+        }
+        
     }
     
     /** CONSTRUCTORS */
@@ -185,6 +210,16 @@ public class Signature {
         return statements.size();
     }
     
+    /** Retrieve the literals required by the statements of the signature,
+     * i.e. that a matching SMTP session holds in its commands/messages. */
+    List<String> getRequiredLiterals() {
+        List<String> to_return = new ArrayList<String>();
+        for (Statement st: statements)
+            if (st.getLiteral() != null && !to_return.contains(st.getLiteral()))
+                to_return.add(st.getLiteral());
+        return to_return;
+    }
+    
     /** Attemp to match the given SMTP session data with the signature, i.e.
      * test the whole SMTP session against the list of regular expressions. */
     public boolean isMatching(SMTPSession session) {
@@ -204,7 +239,7 @@ public class Signature {
         int bs = 1, be = -1;
         boolean eof = false;
         List<SessionStatement> msgs = session.getCommands();
-        String smtp_stmt = null;
+        CharSequence smtp_stmt = null;
         // if the SMTP contains no SMTP command, no match
         if (msgs.size() == 0) return false;
         int var_index = -1, gp_number = -1;
@@ -239,7 +274,9 @@ public class Signature {
                     else if (msgs.get(i).stmtType() ==
 							 SessionStatementType.MESSAGE)
                         smtp_stmt = ((IMFMessage)msgs.get(i)).message();
-                    if ((pm = cur_stmt.getPattern().matcher(smtp_stmt)).find()){
+                    if (cur_stmt.hasVariable() ?
+                        (pm = cur_stmt.getPattern().matcher(smtp_stmt)).find() :
+                        cur_stmt.find(smtp_stmt)) {
                         // statement has matched
                         if (cur_stmt.hasVariable()) {
                             // statement contains variables, check value
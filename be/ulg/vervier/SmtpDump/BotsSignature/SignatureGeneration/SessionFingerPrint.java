@@ -86,7 +86,7 @@ class SessionFingerPrint {
                 smtp_commands.add(c_type = (c = (SMTPCommand)s).cmdType());
                 // test if client uses SMTP or ESMTP
                 if (c_type == SMTPCommandType.HELO) {
-                    String t_c = c.command();
+                    CharSequence t_c = c.command();
                     for (int i = 0; i < t_c.length(); i++) {
                         if (Character.isLetter(t_c.charAt(i)) &&
                             (t_c.charAt(i) == 'e' || t_c.charAt(i) == 'E'))
@@ -113,6 +113,10 @@ public class SignatureGenerator {
         this.auto_generate = auto_generate;
     }
     
+    /** Return true if signatures are generated, i.e. if the SMTP sessions
+     * added are collected, false otherwise. */
+    public boolean isEnabled() { return sig_gen_sample > 0; }
+    
     /** Add the given SMTP session to the collector. */
     public void addSampleSession(SMTPSession session) {
         if (session == null || sig_gen_sample <= 0) return;
@@ -153,11 +157,11 @@ public class SignatureGenerator {
                             l_tb.add(new TreeBuilder());
                         if (st.stmtType() == SessionStatementType.COMMAND) {
                             l_tb.get(i).
-								addSequence(((SMTPCommand)st).command());
+								addSequence(((SMTPCommand)st).toString());
                         } else if
 							(st.stmtType() == SessionStatementType.MESSAGE) {
                             l_tb.get(i).
-								addSequence(((IMFMessage)st).message());
+								addSequence(((IMFMessage)st).toString());
                             imf_messages.add(i);
                         }
                         i++;
@@ -9,6 +9,8 @@
  * regex based signatures, it attempts to match these signatures against SMTP
  * session. Signatures are extracted from a file by the SignatureParser or
  * automatically generated using the SignatureGenerator.
+ * Only the signatures whose required literals all appear in a session are
+ * tested against it (see SignaturePrefilter).
  * 
  */
 
@@ -30,6 +32,9 @@ public class SignatureMatcher {
     private SignatureParser sig_parser;
     /** The collection of bot signatures */
     private Collection<Signature> signatures;
+    /** The prefilter of the signatures, null until the first match after the
+     * signatures changed */
+    private SignaturePrefilter prefilter;
     
     /** CONSTRUCTORS */
     
@@ -48,14 +53,22 @@ public class SignatureMatcher {
     public void buildSignatures() throws SignatureParserException {
         sig_parser.parse();
         signatures = sig_parser.getSignatures();
+        prefilter = null;
     }
     
     /** Add the given signature to the collection. Unlike the "buildSignatures"
      * method which reads defintions from a file given at startup, this method
      * allows for dynamic addition of new signatures. */
     public void addSignature(Signature signature) {
-        if (signature != null && !signature.isEmpty())
+        if (signature != null && !signature.isEmpty()) {
             signatures.add(signature);
+            prefilter = null;
+        }
+    }
+    
+    /** Retrieve the number of signatures. */
+    public int getSignatureCount() {
+        return signatures == null ? 0 : signatures.size();
     }
     
     /** Retrieve the collection of signatures (aka clients) matched by the given
@@ -65,7 +78,7 @@ public class SignatureMatcher {
         Collection<MatchedSMTPClient> to_return =
             new LinkedList<MatchedSMTPClient>();
         MatchedSMTPClient t_m = null;
-        for (Signature sig: signatures) {
+        for (Signature sig: getCandidates(session)) {
             if (sig.isMatching(session)) {
                 (t_m = new MatchedSMTPClient(sig)).addMatchingSession(session);
                 to_return.add(t_m);
@@ -89,7 +102,7 @@ public class SignatureMatcher {
      * SMTP session. */
     public MatchingSMTPSession getMatchingSession(SMTPSession session) {
         MatchingSMTPSession to_return = null;
-        for (Signature sig: signatures) {
+        for (Signature sig: getCandidates(session)) {
             if (sig.isMatching(session)) {
                 if (to_return == null)
                     to_return = new MatchingSMTPSession(session);
@@ -113,4 +126,13 @@ public class SignatureMatcher {
         return to_return;
     }
     
+    /** Retrieve the signatures that may match the given SMTP session, the
+     * prefilter being rebuilt if the signatures changed. */
+    private Collection<Signature> getCandidates(SMTPSession session) {
+        if (session == null) return signatures;
+        if (prefilter == null)
+            prefilter = new SignaturePrefilter(signatures);
+        return prefilter.getCandidates(session);
+    }
+    
 }
@@ -0,0 +1,186 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the selection of the signatures that may match a SMTP
+ * session. The literals required by the statements of the signatures are
+ * looked for in the commands and messages of the session in one pass, by an
+ * Aho-Corasick automaton, and a signature is a candidate only if all its
+ * literals are found (a signature without literals always is). The automaton
+ * is a DFA over the characters of the literals, the other characters sharing
+ * one class: each character read costs one table lookup.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.BotsSignature;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import be.ulg.vervier.SmtpDump.SMTPSessionManagement.SMTPSession;
+import be.ulg.vervier.SmtpDump.SMTPSessionManagement.SessionStatement;
+import be.ulg.vervier.SmtpDump.SMTPSessionManagement.SessionStatementType;
+import be.ulg.vervier.SmtpDump.SMTPSessionManagement.SMTPCommand;
+import be.ulg.vervier.SmtpDump.SMTPSessionManagement.IMFMessage;
+
+class SignaturePrefilter {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The signatures, in the order they were given */
+    private Signature[] signatures;
+    /** The literals required by each signature, by literal index */
+    private int[][] sig_literals;
+    /** The number of distinct literals */
+    private int literal_count;
+    /** The class of each character, 0 for the characters of no literal */
+    private char[] char_class;
+    /** The number of character classes, i.e. the width of a table row */
+    private int width;
+    /** The transition table: the next state of a state for a character class
+     * is at index state * width + class */
+    private int[] delta;
+    /** The literal ending at each state, -1 if none */
+    private int[] output;
+    /** The longest proper suffix of each state ending a literal, -1 if
+     * none */
+    private int[] dict;
+    /** The mark of the literals found by the last scan */
+    private int[] found;
+    /** The mark of the last scan */
+    private int scan_mark;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new prefilter for the given signatures. */
+    SignaturePrefilter(Collection<Signature> signatures) {
+        this.signatures = signatures.toArray(new Signature[signatures.size()]);
+        sig_literals = new int[this.signatures.length][];
+        Map<String, Integer> literals = new HashMap<String, Integer>();
+        int state_count = 1;
+        for (int s = 0; s < this.signatures.length; s++) {
+            List<String> l = this.signatures[s].getRequiredLiterals();
+            sig_literals[s] = new int[l.size()];
+            for (int i = 0; i < l.size(); i++) {
+                Integer index = literals.get(l.get(i));
+                if (index == null) {
+                    literals.put(l.get(i), index = literals.size());
+                    state_count += l.get(i).length();
+                }
+                sig_literals[s][i] = index;
+            }
+        }
+        literal_count = literals.size();
+        found = new int[literal_count];
+        scan_mark = 0;
+        build(literals, state_count);
+    }
+    
+    /** METHODS */
+    
+    /** Retrieve the signatures that may match the given SMTP session, in the
+     * order they were given. */
+    Collection<Signature> getCandidates(SMTPSession session) {
+        scan(session);
+        Collection<Signature> to_return = new LinkedList<Signature>();
+        for (int s = 0; s < signatures.length; s++) {
+            boolean candidate = true;
+            for (int l: sig_literals[s])
+                if (found[l] != scan_mark) { candidate = false; break; }
+            if (candidate) to_return.add(signatures[s]);
+        }
+        return to_return;
+    }
+    
+    /** Mark the literals found in the commands and messages of the given
+     * SMTP session. A literal does not span several statements. */
+    private void scan(SMTPSession session) {
+        if (++scan_mark == 0) {
+            Arrays.fill(found, 0);
+            scan_mark = 1;
+        }
+        if (literal_count == 0) return;
+        int found_count = 0;
+        CharSequence text = null;
+        for (SessionStatement st: session.getCommands()) {
+            if (st.stmtType() == SessionStatementType.COMMAND)
+                text = ((SMTPCommand)st).command();
+            else if (st.stmtType() == SessionStatementType.MESSAGE)
+                text = ((IMFMessage)st).message();
+            else
+                continue;
+            if (text == null) continue;
+            int state = 0;
+            for (int i = 0, n = text.length(); i < n; i++) {
+                state = delta[state * width + char_class[text.charAt(i)]];
+                for (int o = output[state] >= 0 ? state : dict[state];
+                     o >= 0; o = dict[o]) {
+                    if (found[output[o]] != scan_mark) {
+                        found[output[o]] = scan_mark;
+                        // every literal is found, the scan is over
+                        if (++found_count == literal_count) return;
+                    }
+                }
+            }
+        }
+    }
+    
+    /** Build the automaton of the given literals, mapped to their index. */
+    private void build(Map<String, Integer> literals, int state_count) {
+        // one class per character of the literals
+        char_class = new char[Character.MAX_VALUE + 1];
+        width = 1;
+        for (String l: literals.keySet())
+            for (int i = 0; i < l.length(); i++)
+                if (char_class[l.charAt(i)] == 0)
+                    char_class[l.charAt(i)] = (char)width++;
+        delta = new int[state_count * width];
+        output = new int[state_count];
+        dict = new int[state_count];
+        Arrays.fill(output, -1);
+        // the trie of the literals, state 0 being its root
+        int states = 1;
+        for (Map.Entry<String, Integer> e: literals.entrySet()) {
+            int state = 0;
+            for (int i = 0; i < e.getKey().length(); i++) {
+                int t = state * width + char_class[e.getKey().charAt(i)];
+                if (delta[t] == 0) delta[t] = states++;
+                state = delta[t];
+            }
+            output[state] = e.getValue();
+        }
+        // breadth-first: the missing transitions of a state are those of its
+        // failure state, i.e. its longest proper suffix in the trie
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0, tail = 0;
+        dict[0] = -1;
+        for (int c = 0; c < width; c++) {
+            if (delta[c] != 0) {
+                fail[delta[c]] = 0;
+                queue[tail++] = delta[c];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            int f = fail[state];
+            dict[state] = output[f] >= 0 ? f : dict[f];
+            for (int c = 0; c < width; c++) {
+                int t = state * width + c;
+                if (delta[t] != 0) {
+                    fail[delta[t]] = delta[f * width + c];
+                    queue[tail++] = delta[t];
+                } else {
+                    delta[t] = delta[f * width + c];
+                }
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,737 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a linear-time matcher for the signature statement
+ * regexes. The regex is compiled to a NFA (Thompson construction), which is
+ * run as a lazy DFA: a DFA state is the set of NFA states active at one
+ * position of the text, built the first time it is reached and cached with
+ * its transitions. Each character read costs one transition, and at most one
+ * DFA state construction, whose cost is bounded by the size of the NFA: the
+ * gaps of the generated signatures (e.g. ".{0,12}") no longer backtrack.
+ * The cache holds at most MAX_CACHED_STATES states and is flushed when full.
+ * The subset of the regex syntax compiled is the one used by the signatures
+ * and macros: literals and escapes, ".", character classes (with ranges,
+ * nested classes, intersections and "\d", "\s", "\w"), groups, alternations,
+ * greedy and lazy quantifiers, "^" and "$". The other constructs (back
+ * references, lookarounds, possessive quantifiers, inline flags, ...) are
+ * left to java.util.regex. The regex must be compiled with the DOTALL flag
+ * only, as the signature statements are. A text holding surrogate
+ * characters is matched by java.util.regex too.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.BotsSignature;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+class StatementAutomaton {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The maximum number of NFA states, larger regexes being left to
+     * java.util.regex */
+    private static final int MAX_STATES = 10000;
+    /** The maximum number of DFA states cached */
+    static final int MAX_CACHED_STATES = 256;
+    /** The NFA state kinds: a state reading a character of a set, a split
+     * into two states, the beginning and the end ("$") of the text and the
+     * final state */
+    private static final int SET = 0, SPLIT = 1, BEGIN = 2, END = 3, MATCH = 4;
+    /** The position contexts: the beginning of the text, a position where
+     * "$" matches */
+    private static final int AT_BEGIN = 1, AT_END = 2;
+    /** The last character */
+    private static final int MAX_CHAR = Character.MAX_VALUE;
+    /** The characters of "\d", "\s" and "\w" */
+    private static final int[] DIGIT = {'0', '9'};
+    private static final int[] SPACE = {'\t', '\r', ' ', ' '};
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+    
+    /** The regex, for the texts holding surrogate characters */
+    private Pattern pattern;
+    /** The regex string parsed */
+    private String regex;
+    /** The index of the next character of the regex parsed */
+    private int pos;
+    /** The number of NFA states */
+    private int state_count;
+    /** The kind of each NFA state */
+    private int[] kind;
+    /** The next state of each state, the first one of a split */
+    private int[] out1;
+    /** The second next state of a split */
+    private int[] out2;
+    /** The set of characters read by each SET state, as sorted ranges */
+    private int[][] ranges;
+    /** The initial NFA state */
+    private int start;
+    /** True if the regex only matches at the beginning of the text */
+    private boolean anchored;
+    /** The first character of each character class, i.e. of the characters
+     * that no set tells apart */
+    private int[] bounds;
+    /** The character class of each ASCII character */
+    private int[] ascii_class;
+    /** The cached DFA states */
+    private Map<DState, DState> cache;
+    /** The DFA state at the beginning of a text, null until computed */
+    private DState begin_state;
+    /** Scratch arrays of the closure: the mark of the states visited, the
+     * stack of the states to visit, the SET states reached */
+    private int[] mark;
+    private int mark_gen;
+    private int[] stack;
+    private int[] reached;
+    
+    /** This class represents a node of the parse tree of a regex. */
+    class Node {
+    
+        /** INSTANCE VARIABLES */
+    
+        /** The node kind: a set of characters, a concatenation, an
+         * alternation, a repetition, "^", "$" or the empty regex */
+        static final int N_SET = 0, N_CONCAT = 1, N_ALT = 2, N_REPEAT = 3,
+                         N_BEGIN = 4, N_END = 5, N_EMPTY = 6;
+        /** The kind of the node */
+        private int kind;
+        /** The set of characters, as sorted ranges */
+        private int[] set;
+        /** The child nodes */
+        private List<Node> kids;
+        /** The minimum/maximum number of repetitions (-1: unbounded) */
+        private int min, max;
+    
+        /** CONSTRUCTORS */
+    
+        /** Create a new node of the given kind. */
+        Node(int kind) {
+            this.kind = kind;
+            kids = new ArrayList<Node>();
+        }
+    
+        /** Create a new set node. */
+        Node(int[] set) {
+            this(N_SET);
+            this.set = set;
+        }
+    
+    }
+    
+    /** This class represents a DFA state, i.e. a set of SET states of the
+     * NFA, with its transitions by character class. */
+    class DState {
+    
+        /** INSTANCE VARIABLES */
+    
+        /** The sorted SET states */
+        private int[] states;
+        /** True if the final state was reached */
+        private boolean match;
+        /** The next DFA state by character class, in the context of no
+         * assertion */
+        private DState[] next;
+    
+        /** CONSTRUCTORS */
+    
+        /** Create a new DFA state. */
+        DState(int[] states, boolean match) {
+            this.states = states;
+            this.match = match;
+            next = new DState[bounds.length];
+        }
+    
+        /** METHODS */
+    
+        /** Return the hash code of the set of states. */
+        public int hashCode() {
+            return Arrays.hashCode(states) + (match ? 1 : 0);
+        }
+    
+        /** Return true if the given DFA state holds the same states. */
+        public boolean equals(Object o) {
+            return o instanceof DState && ((DState)o).match == match &&
+                   Arrays.equals(((DState)o).states, states);
+        }
+    
+    }
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new automaton for the given regex. */
+    private StatementAutomaton(Pattern pattern) {
+        this.pattern = pattern;
+        regex = pattern.pattern();
+        pos = 0;
+        state_count = 0;
+        kind = new int[16];
+        out1 = new int[16];
+        out2 = new int[16];
+        ranges = new int[16][];
+    }
+    
+    /** METHODS */
+    
+    /** Compile the given regex, compiled with the DOTALL flag, to an
+     * automaton. Return null if the regex holds a construct that is not
+     * supported. */
+    static StatementAutomaton compile(Pattern pattern) {
+        if (pattern == null || pattern.flags() != Pattern.DOTALL) return null;
+        for (int i = 0; i < pattern.pattern().length(); i++)
+            if (Character.isSurrogate(pattern.pattern().charAt(i)))
+                return null;
+        StatementAutomaton to_return = new StatementAutomaton(pattern);
+        try {
+            to_return.build();
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+        return to_return;
+    }
+    
+    /** Return true if the given text holds a match of the regex, as the
+     * find() method of java.util.regex.Matcher does. */
+    boolean find(CharSequence text) {
+        int len = text.length();
+        DState d;
+        if (len > 2) {
+            if (begin_state == null)
+                begin_state = intern(closure(start, -1, AT_BEGIN));
+            d = begin_state;
+        } else {
+            d = intern(closure(start, -1, context(text, 0, len)));
+        }
+        for (int i = 0; i < len && !d.match; i++) {
+            // no thread left and no new one may start
+            if (anchored && d.states.length == 0) return false;
+            char c = text.charAt(i);
+            if (c >= '\uD800' && c <= '\uDFFF')
+                return pattern.matcher(text).find();
+            int ctx = context(text, i + 1, len);
+            if (ctx != 0) {
+                d = step(d, c, ctx);
+            } else {
+                int k = classOf(c);
+                DState n = d.next[k];
+                if (n == null) n = d.next[k] = step(d, c, 0);
+                d = n;
+            }
+        }
+        return d.match;
+    }
+    
+    /** Compute the DFA state following the given one by the given character,
+     * in the given context. The threads may start at any position. */
+    private DState step(DState d, char c, int ctx) {
+        int n = 0;
+        for (int s: d.states)
+            if (contains(ranges[s], c)) stack[n++] = out1[s];
+        return intern(closure(start, n, ctx));
+    }
+    
+    /** Retrieve the cached DFA state holding the same states as the given
+     * one, caching it if there is none. The cache is flushed when full. */
+    private DState intern(DState d) {
+        DState to_return = cache.get(d);
+        if (to_return != null) return to_return;
+        if (cache.size() >= MAX_CACHED_STATES) {
+            cache.clear();
+            begin_state = null;
+        }
+        cache.put(d, d);
+        return d;
+    }
+    
+    /** Compute the DFA state holding the SET states reached from the given
+     * state and from the first states of the stack (-1: none) by following
+     * the splits and the assertions that hold in the given context. */
+    private DState closure(int first, int stacked, int ctx) {
+        int sp = Math.max(stacked, 0);
+        int count = 0;
+        boolean match = false;
+        if (++mark_gen == 0) {
+            Arrays.fill(mark, 0);
+            mark_gen = 1;
+        }
+        stack[sp++] = first;
+        while (sp > 0) {
+            int s = stack[--sp];
+            if (mark[s] == mark_gen) continue;
+            mark[s] = mark_gen;
+            switch (kind[s]) {
+                case SET: reached[count++] = s; break;
+                case SPLIT:
+                    stack[sp++] = out2[s];
+                    stack[sp++] = out1[s];
+                    break;
+                case BEGIN:
+                    if ((ctx & AT_BEGIN) != 0) stack[sp++] = out1[s];
+                    break;
+                case END:
+                    if ((ctx & AT_END) != 0) stack[sp++] = out1[s];
+                    break;
+                default: match = true; break;
+            }
+        }
+        int[] states = Arrays.copyOf(reached, count);
+        Arrays.sort(states);
+        return new DState(states, match);
+    }
+    
+    /** Retrieve the context of the given position of the text. "$" matches
+     * at the end of the text and before a line terminator ending it. */
+    private static int context(CharSequence text, int i, int len) {
+        int ctx = i == 0 ? AT_BEGIN : 0;
+        if (i < len - 2) return ctx;
+        if (i == len - 2) {
+            if (text.charAt(i) == '\r' && text.charAt(i + 1) == '\n')
+                ctx |= AT_END;
+        } else if (i == len - 1) {
+            char c = text.charAt(i);
+            if ((c == '\n' && (i == 0 || text.charAt(i - 1) != '\r')) ||
+                c == '\r' || c == '\u0085' || (c | 1) == 0x2029)
+                ctx |= AT_END;
+        } else {
+            ctx |= AT_END;
+        }
+        return ctx;
+    }
+    
+    /** Retrieve the character class of the given character. */
+    private int classOf(char c) {
+        if (c < 128) return ascii_class[c];
+        int k = Arrays.binarySearch(bounds, c);
+        return k >= 0 ? k : -k - 2;
+    }
+    
+    /** Return true if the given sorted ranges hold the given character. */
+    private static boolean contains(int[] set, int c) {
+        for (int i = 0; i < set.length && set[i] <= c; i += 2)
+            if (c <= set[i + 1]) return true;
+        return false;
+    }
+    
+    /** Parse the regex and build the NFA, the character classes and the
+     * scratch arrays. */
+    private void build() {
+        Node root = alternation();
+        if (pos < regex.length()) unsupported();
+        int match = addState(MATCH, -1, -1, null);
+        start = compile(root, match);
+        // the character classes
+        List<Integer> b = new ArrayList<Integer>();
+        b.add(0);
+        for (int s = 0; s < state_count; s++) {
+            if (kind[s] != SET) continue;
+            for (int i = 0; i < ranges[s].length; i += 2) {
+                b.add(ranges[s][i]);
+                if (ranges[s][i + 1] < MAX_CHAR) b.add(ranges[s][i + 1] + 1);
+            }
+        }
+        java.util.Collections.sort(b);
+        int n = 0;
+        bounds = new int[b.size()];
+        for (int x: b)
+            if (n == 0 || bounds[n - 1] != x) bounds[n++] = x;
+        bounds = Arrays.copyOf(bounds, n);
+        mark = new int[state_count];
+        mark_gen = 0;
+        stack = new int[3 * state_count + 2];
+        reached = new int[state_count];
+        ascii_class = new int[128];
+        for (char c = 0; c < 128; c++) {
+            int k = Arrays.binarySearch(bounds, c);
+            ascii_class[c] = k >= 0 ? k : -k - 2;
+        }
+        cache = new HashMap<DState, DState>();
+        // the regex is anchored if no thread starts past the beginning
+        DState d = closure(start, -1, 0);
+        anchored = d.states.length == 0 && !d.match;
+        for (int s = 0; s < state_count && anchored; s++)
+            if (kind[s] == END && mark[s] == mark_gen) anchored = false;
+    }
+    
+    /** Compile the given node to NFA states leading to the given state.
+     * Return the first state. */
+    private int compile(Node node, int next) {
+        switch (node.kind) {
+            case Node.N_SET: return addState(SET, next, -1, node.set);
+            case Node.N_BEGIN: return addState(BEGIN, next, -1, null);
+            case Node.N_END: return addState(END, next, -1, null);
+            case Node.N_CONCAT:
+                for (int i = node.kids.size() - 1; i >= 0; i--)
+                    next = compile(node.kids.get(i), next);
+                return next;
+            case Node.N_ALT: {
+                int s = compile(node.kids.get(node.kids.size() - 1), next);
+                for (int i = node.kids.size() - 2; i >= 0; i--)
+                    s = addState(SPLIT, compile(node.kids.get(i), next), s,
+                                 null);
+                return s;
+            }
+            case Node.N_REPEAT: {
+                Node x = node.kids.get(0);
+                int s = next;
+                if (node.max < 0) {
+                    // a loop: the split leads to x, back to the split
+                    s = addState(SPLIT, -1, next, null);
+                    int loop = compile(x, s);
+                    out1[s] = loop;
+                } else {
+                    // nested optional repetitions: (x(x(x)?)?)?
+                    for (int i = node.min; i < node.max; i++)
+                        s = addState(SPLIT, compile(x, s), next, null);
+                }
+                for (int i = 0; i < node.min; i++) s = compile(x, s);
+                return s;
+            }
+            default: return next;
+        }
+    }
+    
+    /** Add a NFA state. */
+    private int addState(int k, int o1, int o2, int[] set) {
+        if (state_count == MAX_STATES) unsupported();
+        if (state_count == kind.length) {
+            int l = kind.length << 1;
+            kind = Arrays.copyOf(kind, l);
+            out1 = Arrays.copyOf(out1, l);
+            out2 = Arrays.copyOf(out2, l);
+            ranges = Arrays.copyOf(ranges, l);
+        }
+        kind[state_count] = k;
+        out1[state_count] = o1;
+        out2[state_count] = o2;
+        ranges[state_count] = set;
+        return state_count++;
+    }
+    
+    /** Parse an alternation, up to the end of the regex or of the enclosing
+     * group. */
+    private Node alternation() {
+        Node alt = new Node(Node.N_ALT);
+        alt.kids.add(sequence());
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            alt.kids.add(sequence());
+        }
+        return alt.kids.size() == 1 ? alt.kids.get(0) : alt;
+    }
+    
+    /** Parse a sequence of atoms, each one being optionally quantified. */
+    private Node sequence() {
+        Node seq = new Node(Node.N_CONCAT);
+        while (pos < regex.length()) {
+            char c = regex.charAt(pos);
+            if (c == '|' || c == ')') break;
+            pos++;
+            Node atom;
+            switch (c) {
+                case '(': atom = group(); break;
+                case '[': atom = new Node(charClass()); break;
+                case '.': atom = new Node(new int[] {0, MAX_CHAR}); break;
+                case '^': atom = new Node(Node.N_BEGIN); break;
+                case '$': atom = new Node(Node.N_END); break;
+                case '\\':
+                    if (regex.startsWith("Q", pos)) {
+                        atom = quote(seq);
+                    } else {
+                        int[] set = escape(false);
+                        if (set == null) unsupported();
+                        atom = new Node(set);
+                    }
+                    break;
+                case '*': case '+': case '?': case '{':
+                    unsupported();
+                    return null;
+                default: atom = new Node(new int[] {c, c}); break;
+            }
+            seq.kids.add(quantifier(atom));
+        }
+        return seq.kids.size() == 1 ? seq.kids.get(0) : seq;
+    }
+    
+    /** Parse a group, the opening parenthesis being read. Only the capturing
+     * and non-capturing groups are supported. */
+    private Node group() {
+        if (regex.startsWith("?:", pos)) pos += 2;
+        else if (regex.startsWith("?", pos)) unsupported();
+        Node to_return = alternation();
+        if (pos >= regex.length()) unsupported();
+        pos++;
+        return to_return;
+    }
+    
+    /** Parse the characters quoted by "\Q...\E", the backslash being read.
+     * The characters are added to the given sequence, but the last one which
+     * is returned, as a quantifier only applies to it. */
+    private Node quote(Node seq) {
+        pos++;
+        int end = regex.indexOf("\\E", pos);
+        if (end < 0) end = regex.length();
+        String quoted = regex.substring(pos, end);
+        pos = Math.min(end + 2, regex.length());
+        if (quoted.isEmpty()) return new Node(Node.N_EMPTY);
+        for (int i = 0; i < quoted.length() - 1; i++)
+            seq.kids.add(new Node(new int[] {quoted.charAt(i),
+                                             quoted.charAt(i)}));
+        char c = quoted.charAt(quoted.length() - 1);
+        return new Node(new int[] {c, c});
+    }
+    
+    /** Parse the quantifier following the given atom, if any. */
+    private Node quantifier(Node atom) {
+        if (pos >= regex.length()) return atom;
+        int min, max;
+        char c = regex.charAt(pos);
+        if (c == '?') { min = 0; max = 1; }
+        else if (c == '*') { min = 0; max = -1; }
+        else if (c == '+') { min = 1; max = -1; }
+        else if (c == '{') {
+            int end = regex.indexOf('}', pos);
+            if (end < 0) unsupported();
+            String b = regex.substring(pos + 1, end);
+            int comma = b.indexOf(',');
+            try {
+                min = Integer.parseInt(comma < 0 ? b : b.substring(0, comma));
+                max = comma < 0 ? min :
+                      comma == b.length() - 1 ? -1 :
+                      Integer.parseInt(b.substring(comma + 1));
+            } catch (NumberFormatException nfe) {
+                unsupported();
+                return null;
+            }
+            pos = end;
+        } else {
+            return atom;
+        }
+        pos++;
+        // lazy quantifiers match the same texts, possessive ones do not
+        if (pos < regex.length() && regex.charAt(pos) == '?') pos++;
+        else if (pos < regex.length() && regex.charAt(pos) == '+')
+            unsupported();
+        if (min == 1 && max == 1) return atom;
+        // java.util.regex stops repeating an atom matching the empty string,
+        // which no automaton does
+        if ((max > 1 || max < 0) && nullable(atom)) unsupported();
+        Node to_return = new Node(Node.N_REPEAT);
+        to_return.kids.add(atom);
+        to_return.min = min;
+        to_return.max = max;
+        return to_return;
+    }
+    
+    /** Return true if the given node may match the empty string. */
+    private static boolean nullable(Node node) {
+        switch (node.kind) {
+            case Node.N_SET: return false;
+            case Node.N_CONCAT:
+                for (Node k: node.kids)
+                    if (!nullable(k)) return false;
+                return true;
+            case Node.N_ALT:
+                for (Node k: node.kids)
+                    if (nullable(k)) return true;
+                return false;
+            case Node.N_REPEAT:
+                return node.min == 0 || nullable(node.kids.get(0));
+            default: return true;
+        }
+    }
+    
+    /** Parse a character class, the opening bracket being read, and retrieve
+     * its set of characters. A class is the union of its ranges and nested
+     * classes, intersected with the operands following "&&", and negated as
+     * a whole if it begins with "^". */
+    private int[] charClass() {
+        boolean negated = false;
+        if (regex.startsWith("^", pos)) {
+            negated = true;
+            pos++;
+        }
+        int[] to_return = null;
+        int[] operand = new int[0];
+        boolean first = true;
+        while (true) {
+            if (pos >= regex.length()) unsupported();
+            char c = regex.charAt(pos);
+            if (c == ']' && !first) {
+                pos++;
+                break;
+            }
+            first = false;
+            if (c == '[') {
+                pos++;
+                operand = union(operand, charClass());
+            } else if (c == '&' && regex.startsWith("&&", pos)) {
+                // an intersection needs two operands
+                if (operand.length == 0) unsupported();
+                pos += 2;
+                to_return = to_return == null ? operand :
+                            intersection(to_return, operand);
+                operand = new int[0];
+            } else {
+                operand = union(operand, range());
+            }
+        }
+        if (to_return != null && operand.length == 0) unsupported();
+        to_return = to_return == null ? operand :
+                    intersection(to_return, operand);
+        return negated ? complement(to_return) : to_return;
+    }
+    
+    /** Parse a character, a range of characters or a predefined class in a
+     * character class. */
+    private int[] range() {
+        int lo;
+        if (regex.charAt(pos) == '\\') {
+            pos++;
+            int[] set = escape(true);
+            if (set == null) unsupported();
+            if (set.length != 2 || set[0] != set[1]) return set;
+            lo = set[0];
+        } else {
+            lo = regex.charAt(pos++);
+        }
+        if (pos + 1 < regex.length() && regex.charAt(pos) == '-' &&
+            regex.charAt(pos + 1) != ']' && regex.charAt(pos + 1) != '[') {
+            pos++;
+            int hi;
+            if (regex.charAt(pos) == '\\') {
+                pos++;
+                int[] set = escape(true);
+                if (set == null || set.length != 2 || set[0] != set[1])
+                    unsupported();
+                hi = set[0];
+            } else {
+                hi = regex.charAt(pos++);
+            }
+            if (hi < lo) unsupported();
+            return new int[] {lo, hi};
+        }
+        return new int[] {lo, lo};
+    }
+    
+    /** Parse an escape sequence, the backslash being read, and retrieve its
+     * set of characters, or null if it is not supported. */
+    private int[] escape(boolean in_class) {
+        if (pos >= regex.length()) return null;
+        char c = regex.charAt(pos++);
+        int x;
+        switch (c) {
+            case 'd': return DIGIT;
+            case 'D': return complement(DIGIT);
+            case 's': return SPACE;
+            case 'S': return complement(SPACE);
+            case 'w': return WORD;
+            case 'W': return complement(WORD);
+            case 't': x = '\t'; break;
+            case 'n': x = '\n'; break;
+            case 'r': x = '\r'; break;
+            case 'f': x = '\f'; break;
+            case 'a': x = '\u0007'; break;
+            case 'e': x = '\u001B'; break;
+            case 'c':
+                if (pos >= regex.length()) return null;
+                x = regex.charAt(pos++) ^ 64;
+                break;
+            case 'x':
+                if (regex.startsWith("{", pos)) return null;
+                x = hex(2);
+                break;
+            case 'u': x = hex(4); break;
+            case '0': {
+                // octal: \0n, \0nn or \0mnn (m <= 3)
+                x = -1;
+                for (int i = 0; i < 3 && pos < regex.length(); i++) {
+                    int d = regex.charAt(pos) - '0';
+                    if (d < 0 || d > 7 || (i == 2 && x > 037)) break;
+                    x = (x < 0 ? 0 : x << 3) + d;
+                    pos++;
+                }
+                if (x < 0) return null;
+                break;
+            }
+            default:
+                // back references, boundaries and other escapes
+                if (Character.isLetterOrDigit(c)) return null;
+                x = c;
+                break;
+        }
+        if (x < 0 || x > MAX_CHAR) return null;
+        return new int[] {x, x};
+    }
+    
+    /** Parse the given number of hexadecimal digits, -1 if invalid. */
+    private int hex(int digits) {
+        if (pos + digits > regex.length()) return -1;
+        try {
+            int x = Integer.parseInt(regex.substring(pos, pos + digits), 16);
+            pos += digits;
+            return x;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+    
+    /** Signal a construct that is not supported. */
+    private static void unsupported() {
+        throw new IllegalArgumentException("statement-automaton:unsupported");
+    }
+    
+    /** Retrieve the union of the given sets of sorted ranges. */
+    private static int[] union(int[] a, int[] b) {
+        int[] all = new int[a.length + b.length];
+        System.arraycopy(a, 0, all, 0, a.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        // sort the ranges by their first character
+        long[] r = new long[all.length / 2];
+        for (int i = 0; i < r.length; i++)
+            r[i] = ((long)all[2 * i] << 32) | all[2 * i + 1];
+        Arrays.sort(r);
+        int n = 0;
+        int[] to_return = new int[all.length];
+        for (long x: r) {
+            int lo = (int)(x >>> 32), hi = (int)x;
+            if (n > 0 && lo <= to_return[n - 1] + 1) {
+                to_return[n - 1] = Math.max(to_return[n - 1], hi);
+            } else {
+                to_return[n++] = lo;
+                to_return[n++] = hi;
+            }
+        }
+        return Arrays.copyOf(to_return, n);
+    }
+    
+    /** Retrieve the intersection of the given sets of sorted ranges. */
+    private static int[] intersection(int[] a, int[] b) {
+        return complement(union(complement(a), complement(b)));
+    }
+    
+    /** Retrieve the complement of the given set of sorted ranges. */
+    private static int[] complement(int[] a) {
+        int[] to_return = new int[a.length + 2];
+        int n = 0, lo = 0;
+        for (int i = 0; i < a.length; i += 2) {
+            if (a[i] > lo) {
+                to_return[n++] = lo;
+                to_return[n++] = a[i] - 1;
+            }
+            lo = a[i + 1] + 1;
+        }
+        if (lo <= MAX_CHAR) {
+            to_return[n++] = lo;
+            to_return[n++] = MAX_CHAR;
+        }
+        return Arrays.copyOf(to_return, n);
+    }
+    
+}
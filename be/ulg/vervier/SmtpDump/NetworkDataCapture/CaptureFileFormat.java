@@ -0,0 +1,95 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * Enumerate the supported packet capture file formats. The format of a file
+ * is recognized from its magic bytes, after decompression if the file is
+ * gzip-compressed:
+ * - classic PCAP, plain or gzip-compressed;
+ * - PCAP Next Generation (pcapng), plain or gzip-compressed.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+public enum CaptureFileFormat {
+    PCAP,
+    PCAP_GZIP,
+    PCAPNG,
+    PCAPNG_GZIP,
+    UNKNOWN;
+    
+    /** The size of the buffers used to read capture files (256KB) */
+    static final int IO_BUFFER_SIZE = 1 << 18;
+    
+    /** Return true if the format is gzip-compressed, false otherwise. */
+    public boolean isCompressed() {
+        return this == PCAP_GZIP || this == PCAPNG_GZIP;
+    }
+    
+    /** Recognize the format of the given capture file. Return UNKNOWN if the
+     * file cannot be read or its format is not supported. */
+    public static CaptureFileFormat detect(String file_name) {
+        InputStream in = null;
+        try {
+            BufferedInputStream bin =
+                new BufferedInputStream(new FileInputStream(file_name), 16);
+            boolean compressed = isGzip(bin);
+            in = compressed ? new GZIPInputStream(bin) : bin;
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b < 0) return UNKNOWN;
+                magic = (magic << 8) | b;
+            }
+            switch (magic) {
+                case 0x0A0D0D0A:
+                    return compressed ? PCAPNG_GZIP : PCAPNG;
+                case 0xA1B2C3D4:
+                case 0xD4C3B2A1:
+                case 0xA1B23C4D:
+                case 0x4D3CB2A1:
+                    return compressed ? PCAP_GZIP : PCAP;
+                default:
+                    return UNKNOWN;
+            }
+        } catch (IOException ioe) {
+            return UNKNOWN;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException ioe) {}
+        }
+    }
+    
+    /** Open a buffered stream over the content of the given capture file. A
+     * gzip-compressed file is decompressed on the fly. */
+    static InputStream openStream(String file_name) throws IOException {
+        BufferedInputStream bin =
+            new BufferedInputStream(new FileInputStream(file_name),
+                                    IO_BUFFER_SIZE);
+        if (!isGzip(bin)) return bin;
+        return new BufferedInputStream
+            (new GZIPInputStream(bin, IO_BUFFER_SIZE), IO_BUFFER_SIZE);
+    }
+    
+    /** Return true if the given stream starts with the gzip magic bytes. The
+     * stream position is left unchanged. */
+    private static boolean isGzip(BufferedInputStream in) throws IOException {
+        in.mark(2);
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+        return b1 == 0x1F && b2 == 0x8B;
+    }
+    
+}
@@ -0,0 +1,290 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the parallel capture of network PDUs from a single
+ * large PacketCapture (PCAP) file. The file is split into chunks of about
+ * CHUNK_SIZE bytes whose boundaries are resynchronized on record boundaries,
+ * and the chunks are decoded in parallel on a fork-join pool. The TCP packets
+ * of each chunk are partitioned by a direction-independent hash of their
+ * addresses and ports, so that every packet of a flow lands in the same
+ * partition. Each partition is read through its own packet captor (see
+ * partition()), which delivers the packets of the partition in file order;
+ * the packets of a given flow are thus delivered in order to a single reader.
+ * Only a bounded number of chunks is decoded ahead of the slowest partition.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+public class ChunkedPCAPFileReader extends PacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The number of partitions */
+    private int partition_count;
+    /** The partition captors */
+    private ChunkPartitionCaptor[] partitions;
+    /** The record boundary at which each chunk starts, plus the file size */
+    private long[] boundaries;
+    /** The pending chunk decoding tasks, indexed by chunk */
+    private ForkJoinTask<ArrayList<jpcap.packet.Packet>[]>[] tasks;
+    /** The number of partitions which have not yet consumed each chunk */
+    private int[] pending_partitions;
+    /** The index of the next chunk to submit for decoding */
+    private int next_chunk;
+    /** The pool decoding the chunks */
+    private ForkJoinPool pool;
+    /** The number of chunks decoded ahead per worker */
+    private static final int LOOKAHEAD = 2;
+    /** The nominal size of a chunk (32MB) */
+    static final long CHUNK_SIZE = 1L << 25;
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor: a single partition. */
+    public ChunkedPCAPFileReader() { this(null, 1); }
+    
+    /** Create a new chunked PCAP file reader with the given PCAP file name and
+     * number of partitions. */
+    public ChunkedPCAPFileReader(String fileName, int partition_count) {
+        super(fileName);
+        this.partition_count = Math.max(1, partition_count);
+        partitions = new ChunkPartitionCaptor[this.partition_count];
+        for (int i = 0; i < partitions.length; i++)
+            partitions[i] = new ChunkPartitionCaptor(this, i);
+    }
+    
+    /** METHODS */
+    
+    /** Open the file, compute the chunk boundaries and start decoding the
+     * first chunks. */
+    @SuppressWarnings("unchecked")
+    public void open() throws PacketCaptorException {
+        if (is_resource_open) close();
+        MappedPCAPFileReader reader = new MappedPCAPFileReader
+            (resource_identifier);
+        reader.open();
+        try {
+            long size = reader.getFileSize();
+            int n = (int)Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            boundaries = new long[n + 1];
+            for (int i = 0; i < n; i++)
+                boundaries[i] = reader.nextRecordBoundary(i * CHUNK_SIZE);
+            boundaries[n] = size;
+        } finally {
+            reader.close();
+        }
+        tasks = (ForkJoinTask<ArrayList<jpcap.packet.Packet>[]>[])
+            new ForkJoinTask<?>[boundaries.length - 1];
+        pending_partitions = new int[tasks.length];
+        for (int i = 0; i < pending_partitions.length; i++)
+            pending_partitions[i] = partition_count;
+        pool = new ForkJoinPool();
+        next_chunk = 0;
+        for (ChunkPartitionCaptor p: partitions) p.reset();
+        is_resource_open = true;
+        synchronized (this) {
+            while (next_chunk < tasks.length &&
+                   next_chunk < pool.getParallelism() * LOOKAHEAD)
+                submitNextChunk();
+        }
+    }
+    
+    /** Read the next TCP PDU of the first partition. With a single partition,
+     * this is the next TCP PDU of the file. */
+    public jpcap.packet.Packet read() throws PacketCaptorException {
+        if (!is_resource_open)
+            throw new PacketCaptorException("packet-captor:no open captor");
+        return (packet = partitions[0].read());
+    }
+    
+    /** Retrieve the captor reading the given partition. */
+    public PacketCaptor partition(int i) { return partitions[i]; }
+    
+    /** Retrieve the number of partitions. */
+    public int getPartitionCount() { return partition_count; }
+    
+    /** Retrieve the number of chunks of the open file. */
+    public int getChunkCount() {
+        return (boundaries == null) ? 0 : boundaries.length - 1;
+    }
+    
+    /** Stop decoding and close the file. */
+    public synchronized void close() {
+        if (!is_resource_open) return;
+        pool.shutdownNow();
+        pool = null;
+        is_resource_open = false;
+        notifyAll();
+    }
+    
+    /** Retrieve the packets of the given chunk which belong to the given
+     * partition, waiting for the chunk to be decoded. Return null if there is
+     * no such chunk. */
+    ArrayList<jpcap.packet.Packet> take(int chunk, int partition)
+        throws PacketCaptorException {
+        ForkJoinTask<ArrayList<jpcap.packet.Packet>[]> task;
+        synchronized (this) {
+            if (!is_resource_open)
+                throw new PacketCaptorException("packet-captor:no open " +
+                                               "captor");
+            if (chunk >= tasks.length) return null;
+            // a partition running ahead waits for the slowest partitions to
+            // release a chunk before the next one is decoded
+            while (is_resource_open && chunk >= next_chunk) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    throw new PacketCaptorException
+                        ("packet-captor:interrupted while reading chunk");
+                }
+            }
+            if (!is_resource_open)
+                throw new PacketCaptorException("packet-captor:no open " +
+                                               "captor");
+            task = tasks[chunk];
+        }
+        ArrayList<jpcap.packet.Packet>[] result;
+        try {
+            result = task.get();
+        } catch (InterruptedException ie) {
+            throw new PacketCaptorException
+                ("packet-captor:interrupted while reading chunk");
+        } catch (ExecutionException ee) {
+            Throwable t = ee.getCause();
+            throw (t instanceof PacketCaptorException) ?
+                (PacketCaptorException)t :
+                new PacketCaptorException("packet-captor:" + t);
+        }
+        ArrayList<jpcap.packet.Packet> packets = result[partition];
+        result[partition] = null;
+        synchronized (this) {
+            // release the chunk once every partition has consumed it, and
+            // decode one more chunk instead
+            if (--pending_partitions[chunk] == 0 && is_resource_open) {
+                tasks[chunk] = null;
+                if (next_chunk < tasks.length) submitNextChunk();
+                notifyAll();
+            }
+        }
+        return packets;
+    }
+    
+    /** Submit the next chunk for decoding. */
+    private void submitNextChunk() {
+        final long start = boundaries[next_chunk];
+        final long end = boundaries[next_chunk + 1];
+        tasks[next_chunk++] = pool.submit
+            (new Callable<ArrayList<jpcap.packet.Packet>[]>() {
+                public ArrayList<jpcap.packet.Packet>[] call()
+                    throws PacketCaptorException {
+                    return decodeChunk(start, end);
+                }
+            });
+    }
+    
+    /** Decode the records starting in the given range of the file and
+     * partition the TCP packets by flow. */
+    @SuppressWarnings("unchecked")
+    private ArrayList<jpcap.packet.Packet>[] decodeChunk(long start, long end)
+        throws PacketCaptorException {
+        ArrayList<jpcap.packet.Packet>[] result =
+            (ArrayList<jpcap.packet.Packet>[])new ArrayList<?>[partition_count];
+        int capacity = (int)Math.min(CHUNK_SIZE, end - start) / 512 /
+                       partition_count + 16;
+        for (int i = 0; i < partition_count; i++)
+            result[i] = new ArrayList<jpcap.packet.Packet>(capacity);
+        MappedPCAPFileReader reader =
+            new MappedPCAPFileReader(resource_identifier);
+        reader.setFilter(filter_expression);
+        reader.open();
+        try {
+            reader.setRange(start, end);
+            jpcap.packet.Packet p;
+            while ((p = reader.read()) != null) {
+                int h = (partition_count == 1) ? 0 :
+                    (reader.flowHash() & 0x7FFFFFFF) % partition_count;
+                result[h].add(p);
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+    
+}
+
+/**
+ * A packet captor reading one partition of a chunked PCAP file reader.
+ */
+class ChunkPartitionCaptor extends PacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The chunked reader */
+    private ChunkedPCAPFileReader reader;
+    /** The partition index */
+    private int partition;
+    /** The index of the chunk being read */
+    private int chunk;
+    /** The packets of the chunk being read which belong to the partition */
+    private ArrayList<jpcap.packet.Packet> packets;
+    /** The index of the next packet */
+    private int index;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new partition captor. */
+    ChunkPartitionCaptor(ChunkedPCAPFileReader reader, int partition) {
+        super(reader.getResourceIdentifier());
+        this.reader = reader;
+        this.partition = partition;
+        reset();
+    }
+    
+    /** METHODS */
+    
+    /** Restart reading from the first chunk. */
+    void reset() {
+        chunk = -1;
+        packets = null;
+        index = 0;
+    }
+    
+    /** The partition is opened by the chunked reader. */
+    public void open() throws PacketCaptorException {
+        is_resource_open = true;
+    }
+    
+    /** Read the next TCP PDU of the partition. Return null once every chunk
+     * has been read. */
+    public jpcap.packet.Packet read() throws PacketCaptorException {
+        while (packets == null || index == packets.size()) {
+            if (packets == null && chunk >= 0) return (packet = null);
+            packets = reader.take(++chunk, partition);
+            index = 0;
+        }
+        return (packet = packets.get(index++));
+    }
+    
+    /** The partition is closed by the chunked reader. */
+    public void close() {
+        is_resource_open = false;
+    }
+    
+    /** Retrieve the identifier of the chunked file. */
+    public String getResourceIdentifier() {
+        return reader.getResourceIdentifier();
+    }
+    
+}
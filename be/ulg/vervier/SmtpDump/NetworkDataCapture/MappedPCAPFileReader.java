@@ -0,0 +1,247 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the capture of network PDUs from a PacketCapture (PCAP)
+ * file without any native library. The file is memory-mapped by windows and
+ * the PCAP record headers are walked directly, so that the headers and the
+ * payload of the current record are zero-copy slices of the mapped file.
+ * Both microsecond and nanosecond PCAP formats are supported, in either byte
+ * order.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedPCAPFileReader extends RawPacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The input file */
+    private RandomAccessFile file;
+    /** The channel of the input file */
+    private FileChannel channel;
+    /** The size of the input file (in bytes) */
+    private long file_size;
+    /** The currently mapped window of the input file */
+    private MappedByteBuffer map;
+    /** The offset in the file of the mapped window */
+    private long map_offset;
+    /** The offset in the file of the next record header */
+    private long position;
+    /** The offset in the file where reading stops */
+    private long end_position;
+    /** True if the file was written in little-endian byte order */
+    private boolean swapped;
+    /** True if record timestamps are in nanoseconds, false if microseconds */
+    private boolean nsec_resolution;
+    /** The link-layer header type of the file */
+    private int link_type;
+    /** The maximum length of captured packets */
+    private int snap_len;
+    /** The size of the mapped window (256MB) */
+    private static final int MAP_WINDOW = 1 << 28;
+    /** The PCAP file global header length */
+    private static final int GLOBAL_HEADER_LEN = 24;
+    /** The PCAP record header length */
+    private static final int RECORD_HEADER_LEN = 16;
+    /** The number of chained record headers required to resynchronize on a
+     * record boundary */
+    private static final int RESYNC_RECORDS = 4;
+    /** PCAP magic number, microsecond resolution */
+    private static final int MAGIC_USEC = 0xa1b2c3d4;
+    /** PCAP magic number, nanosecond resolution */
+    private static final int MAGIC_NSEC = 0xa1b23c4d;
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor. */
+    public MappedPCAPFileReader() { super(); }
+    
+    /** Create a new mapped PCAP file reader with the given PCAP file name. */
+    public MappedPCAPFileReader(String fileName) { super(fileName); }
+    
+    /** METHODS */
+    
+    /** Open the file to read PDUs from and check the PCAP global header. */
+    public void open() throws PacketCaptorException {
+        if (is_resource_open) close();
+        if (resource_identifier == null || resource_identifier.isEmpty())
+            throw new PacketCaptorException("Unable to capture packet from file "
+                                           + resource_identifier);
+        try {
+            file = new RandomAccessFile(resource_identifier, "r");
+            channel = file.getChannel();
+            file_size = channel.size();
+            map = null;
+            map_offset = 0;
+            if (file_size < GLOBAL_HEADER_LEN)
+                throw new PacketCaptorException("Invalid PCAP file " +
+                                               resource_identifier);
+            mapWindow(0, GLOBAL_HEADER_LEN);
+            int magic = map.getInt(0);
+            if (magic == MAGIC_USEC || magic == MAGIC_NSEC) {
+                swapped = false;
+            } else if (Integer.reverseBytes(magic) == MAGIC_USEC ||
+                       Integer.reverseBytes(magic) == MAGIC_NSEC) {
+                swapped = true;
+                magic = Integer.reverseBytes(magic);
+            } else {
+                throw new PacketCaptorException("Invalid PCAP file " +
+                                               resource_identifier);
+            }
+            nsec_resolution = magic == MAGIC_NSEC;
+            snap_len = getFileInt(16);
+            link_type = getFileInt(20) & 0x0FFFFFFF;
+        } catch (PacketCaptorException pce) {
+            closeChannel();
+            throw pce;
+        } catch (IOException ioe) {
+            closeChannel();
+            throw new PacketCaptorException("Unable to open file " +
+                                           resource_identifier);
+        }
+        position = GLOBAL_HEADER_LEN;
+        end_position = file_size;
+        is_resource_open = true;
+    }
+    
+    /** Map the next record of the file. Return false at the end of the
+     * file. */
+    protected boolean loadRecord() throws PacketCaptorException {
+        if (position >= end_position) return false;
+        // a truncated record header at the end of the file is ignored
+        if (position + RECORD_HEADER_LEN > file_size) return false;
+        mapWindow(position, RECORD_HEADER_LEN);
+        int i = (int)(position - map_offset);
+        long ts_sec = getFileInt(i) & 0xFFFFFFFFL;
+        long ts_frac = getFileInt(i + 4) & 0xFFFFFFFFL;
+        int incl_len = getFileInt(i + 8);
+        int orig_len = getFileInt(i + 12);
+        if (incl_len < 0 || incl_len > Math.max(snap_len, MAX_RECORD_LEN))
+            throw new PacketCaptorException("Corrupted PCAP record in file " +
+                                           resource_identifier + " at offset " +
+                                           position);
+        // a truncated record at the end of the file is ignored
+        if (position + RECORD_HEADER_LEN + incl_len > file_size) return false;
+        mapWindow(position, RECORD_HEADER_LEN + incl_len);
+        buf = map;
+        rec_link_type = link_type;
+        rec_sec = ts_sec;
+        rec_usec = nsec_resolution ? ts_frac / 1000 : ts_frac;
+        rec_caplen = incl_len;
+        rec_len = orig_len;
+        link_off = (int)(position - map_offset) + RECORD_HEADER_LEN;
+        rec_end = link_off + incl_len;
+        position += RECORD_HEADER_LEN + incl_len;
+        return true;
+    }
+    
+    /** Retrieve the link-layer header type of the file. */
+    public int getLinkType() { return link_type; }
+    
+    /** Retrieve the size of the open file (in bytes). */
+    public long getFileSize() { return file_size; }
+    
+    /** Restrict the reading to the records starting in the given range of
+     * file offsets. The start offset must be a record boundary. */
+    void setRange(long start, long end) {
+        position = Math.max(start, GLOBAL_HEADER_LEN);
+        end_position = Math.min(end, file_size);
+    }
+    
+    /** Find the first record boundary at or after the given file offset, i.e.
+     * the first offset where RESYNC_RECORDS consecutive plausible record
+     * headers are chained (or the chain reaches the end of the file). Return
+     * the file size if there is none. */
+    long nextRecordBoundary(long offset) throws PacketCaptorException {
+        if (offset <= GLOBAL_HEADER_LEN) return GLOBAL_HEADER_LEN;
+        for (long p = offset; p + RECORD_HEADER_LEN <= file_size; p++) {
+            long q = p;
+            int n = 0;
+            while (n < RESYNC_RECORDS && q + RECORD_HEADER_LEN <= file_size) {
+                int len = plausibleRecordLength(q);
+                if (len < 0 || q + RECORD_HEADER_LEN + len > file_size) break;
+                q += RECORD_HEADER_LEN + len;
+                n++;
+            }
+            if (n == RESYNC_RECORDS || (n > 0 && q == file_size)) return p;
+        }
+        return file_size;
+    }
+    
+    /** Close the current input file. */
+    public void close() {
+        if (!is_resource_open) return;
+        closeChannel();
+        is_resource_open = false;
+    }
+    
+    /** Set the name of the input file to read from. */
+    public void setFileName(String fileName) {
+        setResourceIdentifier(fileName);
+    }
+    
+    /** Retrieve the name of the input file to read from. */
+    public String getFileName() {
+        return getResourceIdentifier();
+    }
+    
+    /** Return the captured length of the record whose header is at the given
+     * file offset, or -1 if the header is not plausible. */
+    private int plausibleRecordLength(long offset)
+        throws PacketCaptorException {
+        mapWindow(offset, RECORD_HEADER_LEN);
+        int i = (int)(offset - map_offset);
+        long ts_frac = getFileInt(i + 4) & 0xFFFFFFFFL;
+        int incl_len = getFileInt(i + 8);
+        int orig_len = getFileInt(i + 12);
+        if (ts_frac >= (nsec_resolution ? 1000000000L : 1000000L)) return -1;
+        if (incl_len < 0 || incl_len > Math.max(snap_len, MAX_RECORD_LEN) ||
+            orig_len < incl_len || orig_len > MAX_RECORD_LEN)
+            return -1;
+        return incl_len;
+    }
+    
+    /** Make sure the given region of the file is inside the mapped window. */
+    private void mapWindow(long offset, int length)
+        throws PacketCaptorException {
+        if (map != null && offset >= map_offset &&
+            offset + length <= map_offset + map.limit())
+            return;
+        long size = Math.min(Math.max(MAP_WINDOW, length), file_size - offset);
+        try {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        } catch (IOException ioe) {
+            throw new PacketCaptorException("Unable to map file " +
+                                           resource_identifier + " (" +
+                                           ioe.getMessage() + ")");
+        }
+        map_offset = offset;
+    }
+    
+    /** Release the mapped window and close the input file. */
+    private void closeChannel() {
+        map = null;
+        buf = null;
+        try {
+            if (file != null) file.close();
+        } catch (IOException ioe) {}
+        file = null;
+        channel = null;
+    }
+    
+    /** Retrieve the int in the file byte order at the given index. */
+    private int getFileInt(int i) {
+        return swapped ? Integer.reverseBytes(map.getInt(i)) : map.getInt(i);
+    }
+    
+}
@@ -0,0 +1,304 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a network PDUs reader merging several packet captors
+ * into a single stream ordered by capture time. Each underlying captor is read
+ * and decoded on its own reader thread, which hands batches of packets over to
+ * the merging thread through a bounded queue. The merge is a k-way merge on
+ * the capture time of the next packet of each captor; packets with the same
+ * capture time are delivered in the order of the captors.
+ * Only the first packet of each captor is read when the merge starts: the
+ * reader threads of the READ_AHEAD earliest captors not exhausted are running,
+ * the reader thread of a captor being also started when its first packet is
+ * merged, and the captor is closed as soon as it is exhausted. The files of a
+ * rotated capture set, which do not overlap in time, are thus read one after
+ * another as a single continuous stream, the next file being decoded while
+ * the current one is merged.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class MergingPacketCaptor extends PacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The merged packet captors */
+    private ArrayList<PacketCaptor> captors;
+    /** The merge sources, one per captor */
+    private ArrayList<MergeSource> sources;
+    /** The merge sources which still have packets, ordered by the capture
+     * time of their next packet */
+    private PriorityQueue<MergeSource> heads;
+    /** The merge sources which had packets when the merge started, ordered by
+     * the capture time of their first packet */
+    private ArrayList<MergeSource> pending;
+    /** The index of the next source of pending whose reader thread may be
+     * started ahead of its first packet */
+    private int next_pending;
+    /** The number of reader threads started whose captor is not exhausted */
+    private int active;
+    /** The number of captors read at a time, unless they overlap in time */
+    private static final int READ_AHEAD = 2;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new merging packet captor over the given packet captors. */
+    public MergingPacketCaptor(List<PacketCaptor> captors) {
+        super();
+        this.captors = new ArrayList<PacketCaptor>(captors);
+        sources = new ArrayList<MergeSource>(captors.size());
+        heads = new PriorityQueue<MergeSource>(Math.max(1, captors.size()));
+        pending = new ArrayList<MergeSource>(captors.size());
+        next_pending = 0;
+        active = 0;
+    }
+    
+    /** METHODS */
+    
+    /** Open every merged captor and read its first packet. */
+    public void open() throws PacketCaptorException {
+        if (is_resource_open) close();
+        if (captors.isEmpty())
+            throw new PacketCaptorException("packet-captor:nothing to merge");
+        for (PacketCaptor c: captors) {
+            try {
+                c.open();
+            } catch (PacketCaptorException pce) {
+                for (PacketCaptor o: captors) o.close();
+                throw pce;
+            }
+        }
+        sources.clear();
+        heads.clear();
+        for (int i = 0; i < captors.size(); i++)
+            sources.add(new MergeSource(captors.get(i), i));
+        is_resource_open = true;
+        try {
+            for (MergeSource s: sources)
+                if (s.first()) heads.add(s);
+                else s.finish();
+        } catch (PacketCaptorException pce) {
+            close();
+            throw pce;
+        }
+        pending.clear();
+        pending.addAll(heads);
+        Collections.sort(pending);
+        next_pending = 0;
+        active = 0;
+        prefetch();
+    }
+    
+    /** Read the next PDU in capture time order. Return null when every merged
+     * captor has been exhausted. */
+    public jpcap.packet.Packet read() throws PacketCaptorException {
+        if (!is_resource_open)
+            throw new PacketCaptorException("packet-captor:no open captor");
+        MergeSource s = heads.poll();
+        if (s == null) return (packet = null);
+        packet = s.head;
+        // first packet merged of a captor overlapping those read ahead
+        if (s.thread == null) start(s);
+        if (s.advance()) {
+            heads.add(s);
+        } else {
+            s.finish();
+            active--;
+            prefetch();
+        }
+        return packet;
+    }
+    
+    /** Start the reader threads of the earliest captors not started yet, up
+     * to READ_AHEAD captors read at a time. */
+    private void prefetch() {
+        while (active < READ_AHEAD && next_pending < pending.size()) {
+            MergeSource s = pending.get(next_pending++);
+            if (s.thread == null) start(s);
+        }
+    }
+    
+    /** Start the reader thread of the given merge source. */
+    private void start(MergeSource s) {
+        Thread t = new Thread(s, "packet-reader-" + s.rank());
+        t.setDaemon(true);
+        s.thread = t;
+        t.start();
+        active++;
+    }
+    
+    /** Set the identifier of each merged captor, in the same order. */
+    public void setResourceIdentifiers(List<String> resource_ids) {
+        for (int i = 0; i < captors.size() && i < resource_ids.size(); i++)
+            captors.get(i).setResourceIdentifier(resource_ids.get(i));
+    }
+    
+    /** Set the packet filter expression of every merged captor. */
+    public void setFilter(String expression) throws PacketCaptorException {
+        super.setFilter(expression);
+        for (PacketCaptor c: captors) c.setFilter(expression);
+    }
+    
+    /** Retrieve the identifiers of the merged captors, comma separated. */
+    public String getResourceIdentifier() {
+        StringBuilder sb = new StringBuilder(100);
+        for (PacketCaptor c: captors) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(c.getResourceIdentifier());
+        }
+        return sb.toString();
+    }
+    
+    /** Retrieve the number of merged captors. */
+    public int size() { return captors.size(); }
+    
+    /** Stop the reader threads and close every merged captor. */
+    public void close() {
+        if (!is_resource_open) return;
+        for (MergeSource s: sources)
+            if (s.thread != null) s.thread.interrupt();
+        for (MergeSource s: sources) s.finish();
+        for (PacketCaptor c: captors) c.close();
+        sources.clear();
+        heads.clear();
+        pending.clear();
+        is_resource_open = false;
+    }
+    
+}
+
+/**
+ * A merge source reads the packets of one captor on its own thread and hands
+ * them over in batches to the merging thread.
+ */
+class MergeSource implements Runnable, Comparable<MergeSource> {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The packet captor read by this source */
+    private PacketCaptor captor;
+    /** The rank of the source, used to order packets with the same capture
+     * time */
+    private int rank;
+    /** The batches of packets read and not yet merged */
+    private ArrayBlockingQueue<ArrayList<jpcap.packet.Packet>> batches;
+    /** The batch being merged */
+    private ArrayList<jpcap.packet.Packet> batch;
+    /** The index of the next packet in the batch being merged */
+    private int batch_index;
+    /** The error raised by the reader thread, if any */
+    private volatile PacketCaptorException error;
+    /** The next packet of this source */
+    jpcap.packet.Packet head;
+    /** The reader thread, null until it is started */
+    Thread thread;
+    /** The number of packets per batch */
+    private static final int BATCH_SIZE = 512;
+    /** The number of batches buffered per source */
+    private static final int MAX_BATCHES = 8;
+    /** The batch marking the end of the source */
+    private static final ArrayList<jpcap.packet.Packet> EOF_BATCH =
+        new ArrayList<jpcap.packet.Packet>(0);
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new merge source for the given captor and rank. */
+    MergeSource(PacketCaptor captor, int rank) {
+        this.captor = captor;
+        this.rank = rank;
+        batches =
+            new ArrayBlockingQueue<ArrayList<jpcap.packet.Packet>>(MAX_BATCHES);
+        batch = null;
+        batch_index = 0;
+        head = null;
+        thread = null;
+    }
+    
+    /** METHODS */
+    
+    /** Read the first packet of this source on the calling thread, before the
+     * reader thread is started. Return false if the source is empty. */
+    boolean first() throws PacketCaptorException {
+        head = captor.read();
+        if (head != null) return true;
+        batch = EOF_BATCH;
+        return false;
+    }
+    
+    /** The reader thread task. */
+    public void run() {
+        ArrayList<jpcap.packet.Packet> b =
+            new ArrayList<jpcap.packet.Packet>(BATCH_SIZE);
+        try {
+            try {
+                jpcap.packet.Packet p;
+                while ((p = captor.read()) != null) {
+                    b.add(p);
+                    if (b.size() == BATCH_SIZE) {
+                        batches.put(b);
+                        b = new ArrayList<jpcap.packet.Packet>(BATCH_SIZE);
+                    }
+                }
+            } catch (PacketCaptorException pce) {
+                error = pce;
+            }
+            if (!b.isEmpty()) batches.put(b);
+            batches.put(EOF_BATCH);
+        } catch (InterruptedException ie) {}
+    }
+    
+    /** Move to the next packet of this source. Return false when the source
+     * is exhausted. */
+    boolean advance() throws PacketCaptorException {
+        while (batch == null || batch_index == batch.size()) {
+            if (batch == EOF_BATCH) {
+                head = null;
+                return false;
+            }
+            try {
+                batch = batches.take();
+            } catch (InterruptedException ie) {
+                throw new PacketCaptorException
+                    ("packet-captor:interrupted while merging");
+            }
+            batch_index = 0;
+            if (batch == EOF_BATCH && error != null) throw error;
+        }
+        head = batch.get(batch_index++);
+        return true;
+    }
+    
+    /** Wait for the reader thread, if started, and close the captor. */
+    void finish() {
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        captor.close();
+    }
+    
+    /** Retrieve the rank of the source. */
+    int rank() { return rank; }
+    
+    /** Compare the capture time of the next packet of both sources. */
+    public int compareTo(MergeSource o) {
+        if (head.sec != o.head.sec) return (head.sec < o.head.sec) ? -1 : 1;
+        if (head.usec != o.head.usec) return (head.usec < o.head.usec) ? -1 : 1;
+        return rank - o.rank;
+    }
+    
+}
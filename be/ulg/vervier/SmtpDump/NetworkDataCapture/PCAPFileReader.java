@@ -38,6 +38,14 @@ public class PCAPFileReader extends PacketCaptor {
             throw new PacketCaptorException("Unable to open file " +
                                            resource_identifier);
         }
+        try {
+            if (filter_expression != null)
+                captor.setFilter(filter_expression, true);
+        } catch (java.io.IOException ioe) {
+            captor.close();
+            throw new PacketCaptorException("Invalid packet filter " +
+                                           filter_expression);
+        }
         is_resource_open = true;
     }
     
@@ -0,0 +1,225 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the capture of network PDUs from a PCAP Next
+ * Generation (pcapng) file, plain or gzip-compressed. The blocks are decoded
+ * while the file is streamed: section header blocks (SHB) set the byte order,
+ * interface description blocks (IDB) define the link type and timestamp
+ * resolution of each interface and enhanced, simple and obsolete packet blocks
+ * (EPB, SPB, PB) carry the captured packets. Other blocks are skipped.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.util.ArrayList;
+
+public class PCAPNGFileReader extends StreamPacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The interfaces described in the current section */
+    private ArrayList<PCAPNGInterface> interfaces;
+    /** The block header buffer */
+    private byte[] block_header;
+    /** The largest block accepted */
+    private static final int MAX_BLOCK_LEN = 1 << 24;
+    /** Block types */
+    private static final int BLOCK_SHB = 0x0A0D0D0A;
+    private static final int BLOCK_IDB = 0x00000001;
+    private static final int BLOCK_PB = 0x00000002;
+    private static final int BLOCK_SPB = 0x00000003;
+    private static final int BLOCK_EPB = 0x00000006;
+    /** The section header byte-order magic */
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    /** The interface timestamp resolution option code */
+    private static final int OPT_IF_TSRESOL = 9;
+    /** The end of options option code */
+    private static final int OPT_ENDOFOPT = 0;
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor. */
+    public PCAPNGFileReader() { this(null); }
+    
+    /** Create a new pcapng file reader with the given file name. */
+    public PCAPNGFileReader(String fileName) {
+        super(fileName);
+        interfaces = new ArrayList<PCAPNGInterface>();
+        block_header = new byte[12];
+    }
+    
+    /** METHODS */
+    
+    /** Read and check the first section header block. */
+    protected void readFileHeader() throws PacketCaptorException {
+        interfaces.clear();
+        if (!readFully(block_header, 0, 12) ||
+            getFileInt(block_header, 0) != BLOCK_SHB ||
+            !readSectionHeader())
+            throw new PacketCaptorException("Invalid pcapng file " +
+                                           resource_identifier);
+    }
+    
+    /** Read blocks until the next packet block. Return false at the end of the
+     * file. */
+    protected boolean loadRecord() throws PacketCaptorException {
+        while (true) {
+            // a truncated block at the end of the file is ignored
+            if (!readFully(block_header, 0, 8)) return false;
+            int type = getFileInt(block_header, 0);
+            if (type == BLOCK_SHB) {
+                if (!readFully(block_header, 8, 4) || !readSectionHeader())
+                    throw new PacketCaptorException
+                        ("Corrupted pcapng section header in file " +
+                         resource_identifier);
+                continue;
+            }
+            int body_len = readBlockBody();
+            if (body_len < 0) return false;
+            switch (type) {
+                case BLOCK_IDB:
+                    addInterface(body_len);
+                    break;
+                case BLOCK_EPB:
+                    if (setPacket(getFileInt(rec_buffer, 0),
+                                  getFileInt(rec_buffer, 4),
+                                  getFileInt(rec_buffer, 8),
+                                  getFileInt(rec_buffer, 12),
+                                  getFileInt(rec_buffer, 16),
+                                  20, body_len))
+                        return true;
+                    break;
+                case BLOCK_PB:
+                    if (setPacket(getFileUShort(rec_buffer, 0),
+                                  getFileInt(rec_buffer, 4),
+                                  getFileInt(rec_buffer, 8),
+                                  getFileInt(rec_buffer, 12),
+                                  getFileInt(rec_buffer, 16),
+                                  20, body_len))
+                        return true;
+                    break;
+                case BLOCK_SPB:
+                    if (body_len < 4 || interfaces.isEmpty()) break;
+                    int orig_len = getFileInt(rec_buffer, 0);
+                    int cap_len = Math.min(orig_len, body_len - 4);
+                    int snap_len = interfaces.get(0).snap_len;
+                    if (snap_len > 0) cap_len = Math.min(cap_len, snap_len);
+                    // simple packet blocks carry no timestamp
+                    if (setPacket(0, 0, 0, cap_len, orig_len, 4, body_len))
+                        return true;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+    
+    /** Read the rest of a section header block whose first 12 bytes are in
+     * the block header buffer. Return false if the block is invalid. */
+    private boolean readSectionHeader() throws PacketCaptorException {
+        int magic = getFileInt(block_header, 8);
+        if (magic == Integer.reverseBytes(BYTE_ORDER_MAGIC)) swapped = !swapped;
+        else if (magic != BYTE_ORDER_MAGIC) return false;
+        // a new section starts a new set of interfaces
+        interfaces.clear();
+        int total_len = getFileInt(block_header, 4);
+        if (total_len < 28 || total_len > MAX_BLOCK_LEN || total_len % 4 != 0)
+            return false;
+        ensureCapacity(total_len - 12);
+        return readFully(rec_buffer, 0, total_len - 12);
+    }
+    
+    /** Read the body and the trailing length of the block whose header is in
+     * the block header buffer. Return the body length, or -1 at the end of
+     * the file. */
+    private int readBlockBody() throws PacketCaptorException {
+        int total_len = getFileInt(block_header, 4);
+        if (total_len < 12 || total_len > MAX_BLOCK_LEN || total_len % 4 != 0)
+            throw new PacketCaptorException("Corrupted pcapng block in file " +
+                                           resource_identifier);
+        ensureCapacity(total_len - 8);
+        if (!readFully(rec_buffer, 0, total_len - 8)) return -1;
+        return total_len - 12;
+    }
+    
+    /** Add the interface described by the interface description block in the
+     * record buffer. */
+    private void addInterface(int body_len) {
+        PCAPNGInterface iface = new PCAPNGInterface();
+        if (body_len >= 8) {
+            iface.link_type = getFileUShort(rec_buffer, 0);
+            iface.snap_len = getFileInt(rec_buffer, 4);
+        }
+        int i = 8;
+        while (i + 4 <= body_len) {
+            int code = getFileUShort(rec_buffer, i);
+            int len = getFileUShort(rec_buffer, i + 2);
+            if (code == OPT_ENDOFOPT) break;
+            if (code == OPT_IF_TSRESOL && len >= 1 && i + 4 < body_len) {
+                int res = rec_buffer[i + 4] & 0xFF;
+                if ((res & 0x80) == 0) {
+                    iface.units = 1;
+                    for (int j = 0; j < Math.min(res, 18); j++)
+                        iface.units *= 10;
+                } else {
+                    iface.units = 1L << Math.min(res & 0x7F, 62);
+                }
+            }
+            i += 4 + ((len + 3) & ~3);
+        }
+        interfaces.add(iface);
+    }
+    
+    /** Set the current record from the packet block in the record buffer.
+     * Return false if the block refers to an unknown interface or is
+     * inconsistent. */
+    private boolean setPacket(int iface_id, int ts_high, int ts_low,
+                              int cap_len, int orig_len,
+                              int data_off, int body_len) {
+        if (iface_id < 0 || iface_id >= interfaces.size()) return false;
+        if (cap_len < 0 || data_off + cap_len > body_len) return false;
+        PCAPNGInterface iface = interfaces.get(iface_id);
+        long ts = ((ts_high & 0xFFFFFFFFL) << 32) | (ts_low & 0xFFFFFFFFL);
+        rec_link_type = iface.link_type;
+        rec_sec = ts / iface.units;
+        long frac = ts % iface.units;
+        rec_usec = (iface.units <= 1000000L) ?
+            frac * 1000000L / iface.units : frac / (iface.units / 1000000L);
+        rec_caplen = cap_len;
+        rec_len = orig_len;
+        link_off = data_off;
+        rec_end = data_off + cap_len;
+        return true;
+    }
+    
+}
+
+/**
+ * An interface described in a pcapng section.
+ */
+class PCAPNGInterface {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The link-layer header type */
+    int link_type;
+    /** The maximum length of captured packets, 0 if unlimited */
+    int snap_len;
+    /** The number of timestamp units per second */
+    long units;
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor: microsecond timestamps. */
+    PCAPNGInterface() {
+        link_type = 1;
+        snap_len = 0;
+        units = 1000000L;
+    }
+    
+}
@@ -24,6 +24,8 @@ public abstract class PacketCaptor {
     protected boolean is_resource_open;
     /** The current packet being read */
     protected jpcap.packet.Packet packet;
+    /** The packet filter expression, null if no filter is set */
+    protected String filter_expression;
     
     /** CONSTRUCTORS */
     
@@ -56,6 +58,19 @@ public abstract class PacketCaptor {
         return resource_identifier;
     }
     
+    /** Set the packet filter expression: only packets accepted by the filter
+     * are read (see PacketFilter for the syntax). A null expression removes
+     * the filter. */
+    public void setFilter(String expression) throws PacketCaptorException {
+        filter_expression = (expression == null || expression.trim().isEmpty())
+            ? null : expression;
+    }
+    
+    /** Retrieve the packet filter expression, null if no filter is set. */
+    public String getFilter() {
+        return filter_expression;
+    }
+    
     /** Open a new input resource. */
     public abstract void open() throws PacketCaptorException;
     
@@ -0,0 +1,289 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a compiled packet filter evaluated directly on the raw
+ * header bytes of the current record of a raw packet captor, so that rejected
+ * packets are never materialized. The expression syntax is a subset of the
+ * libpcap filter language:
+ * - protocols: ip, ip6, tcp, udp, icmp;
+ * - [src|dst] port <n>, [src|dst] portrange <n>-<m>;
+ * - [src|dst] host <address>, [src|dst] net <address>/<prefix>;
+ * - not (!), and (&&), or (||) and parentheses.
+ * As in libpcap, "and" and "or" have the same precedence and are left
+ * associative, e.g. "tcp and port 25 or port 587" is
+ * "(tcp and port 25) or port 587".
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+
+public class PacketFilter {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The filter expression */
+    private String expression;
+    /** The root of the compiled expression */
+    private FilterNode root;
+    /** The tokens of the expression being compiled */
+    private ArrayList<String> tokens;
+    /** The index of the next token to compile */
+    private int next;
+    
+    /** CONSTRUCTORS */
+    
+    /** Compile the given filter expression. */
+    public PacketFilter(String expression) throws PacketCaptorException {
+        this.expression = expression;
+        tokens = tokenize(expression);
+        next = 0;
+        if (tokens.isEmpty())
+            throw new PacketCaptorException("packet-filter:empty expression");
+        root = parseExpression();
+        if (next < tokens.size())
+            throw new PacketCaptorException("packet-filter:unexpected \"" +
+                                           tokens.get(next) + "\" in \"" +
+                                           expression + "\"");
+        tokens = null;
+    }
+    
+    /** METHODS */
+    
+    /** Return true if the current decoded record of the given captor is
+     * accepted by the filter, false otherwise. */
+    public boolean accept(RawPacketCaptor c) {
+        return root.accept(c);
+    }
+    
+    /** Retrieve the filter expression. */
+    public String getExpression() { return expression; }
+    
+    /** Return the String representation of the filter. */
+    public String toString() { return expression; }
+    
+    /** expression := unary (("and" | "or") unary)* */
+    private FilterNode parseExpression() throws PacketCaptorException {
+        FilterNode left = parseUnary();
+        while (next < tokens.size()) {
+            String t = tokens.get(next);
+            int op;
+            if (t.equals("and") || t.equals("&&")) op = FilterNode.AND;
+            else if (t.equals("or") || t.equals("||")) op = FilterNode.OR;
+            else break;
+            next++;
+            FilterNode n = new FilterNode(op);
+            n.left = left;
+            n.right = parseUnary();
+            left = n;
+        }
+        return left;
+    }
+    
+    /** unary := ("not" | "!") unary | "(" expression ")" | primitive */
+    private FilterNode parseUnary() throws PacketCaptorException {
+        String t = nextToken();
+        if (t.equals("not") || t.equals("!")) {
+            FilterNode n = new FilterNode(FilterNode.NOT);
+            n.left = parseUnary();
+            return n;
+        }
+        if (t.equals("(")) {
+            FilterNode n = parseExpression();
+            if (!nextToken().equals(")"))
+                throw new PacketCaptorException("packet-filter:missing \")\" " +
+                                               "in \"" + expression + "\"");
+            return n;
+        }
+        return parsePrimitive(t);
+    }
+    
+    /** primitive := protocol | [src|dst] (port|portrange|host|net) value */
+    private FilterNode parsePrimitive(String t) throws PacketCaptorException {
+        FilterNode n;
+        if (t.equals("ip")) return new FilterNode(FilterNode.IPV4);
+        if (t.equals("ip6")) return new FilterNode(FilterNode.IPV6);
+        if (t.equals("tcp")) return protocol(6);
+        if (t.equals("udp")) return protocol(17);
+        if (t.equals("icmp")) return protocol(1);
+        int dir = FilterNode.ANY;
+        if (t.equals("src") || t.equals("dst")) {
+            dir = t.equals("src") ? FilterNode.SRC : FilterNode.DST;
+            t = nextToken();
+        }
+        if (t.equals("port")) {
+            n = new FilterNode(FilterNode.PORT);
+            n.low = n.high = parsePort(nextToken());
+        } else if (t.equals("portrange")) {
+            String r = nextToken();
+            int i = r.indexOf('-');
+            if (i < 0)
+                throw new PacketCaptorException("packet-filter:invalid port " +
+                                               "range \"" + r + "\"");
+            n = new FilterNode(FilterNode.PORT);
+            n.low = parsePort(r.substring(0, i));
+            n.high = parsePort(r.substring(i + 1));
+        } else if (t.equals("host")) {
+            n = new FilterNode(FilterNode.ADDRESS);
+            n.address = parseAddress(nextToken());
+            n.prefix = n.address.length * 8;
+        } else if (t.equals("net")) {
+            String a = nextToken();
+            int i = a.indexOf('/');
+            n = new FilterNode(FilterNode.ADDRESS);
+            n.address = parseAddress((i < 0) ? a : a.substring(0, i));
+            n.prefix = n.address.length * 8;
+            if (i >= 0) {
+                try {
+                    n.prefix = Integer.parseInt(a.substring(i + 1));
+                } catch (NumberFormatException nfe) {
+                    n.prefix = -1;
+                }
+                if (n.prefix < 0 || n.prefix > n.address.length * 8)
+                    throw new PacketCaptorException("packet-filter:invalid " +
+                                                   "network \"" + a + "\"");
+            }
+        } else {
+            throw new PacketCaptorException("packet-filter:unknown primitive \""
+                                           + t + "\" in \"" + expression +
+                                           "\"");
+        }
+        n.dir = dir;
+        return n;
+    }
+    
+    /** Build a node matching the given IP protocol number. */
+    private FilterNode protocol(int number) {
+        FilterNode n = new FilterNode(FilterNode.PROTOCOL);
+        n.low = number;
+        return n;
+    }
+    
+    /** Parse a port number. */
+    private int parsePort(String t) throws PacketCaptorException {
+        int port = -1;
+        try {
+            port = Integer.parseInt(t);
+        } catch (NumberFormatException nfe) {}
+        if (port < 0 || port > 65535)
+            throw new PacketCaptorException("packet-filter:invalid port \"" +
+                                           t + "\"");
+        return port;
+    }
+    
+    /** Parse a literal IPv4 or IPv6 address. Host names are not resolved. */
+    private byte[] parseAddress(String t) throws PacketCaptorException {
+        boolean literal = t.indexOf(':') >= 0 || t.matches("[0-9.]+");
+        try {
+            if (literal) return InetAddress.getByName(t).getAddress();
+        } catch (UnknownHostException uhe) {}
+        throw new PacketCaptorException("packet-filter:invalid address \"" +
+                                       t + "\"");
+    }
+    
+    /** Retrieve the next token of the expression. */
+    private String nextToken() throws PacketCaptorException {
+        if (next >= tokens.size())
+            throw new PacketCaptorException("packet-filter:unexpected end of " +
+                                           "\"" + expression + "\"");
+        return tokens.get(next++);
+    }
+    
+    /** Split the given expression into lower-case tokens. */
+    private static ArrayList<String> tokenize(String expression) {
+        ArrayList<String> t = new ArrayList<String>();
+        if (expression == null) return t;
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '(' || c == ')' || c == '!' || Character.isWhitespace(c)) {
+                if (sb.length() > 0) t.add(sb.toString());
+                sb.setLength(0);
+                if (!Character.isWhitespace(c)) t.add(String.valueOf(c));
+            } else {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        if (sb.length() > 0) t.add(sb.toString());
+        return t;
+    }
+    
+}
+
+/**
+ * A node of a compiled packet filter expression.
+ */
+class FilterNode {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The node operation */
+    int op;
+    /** The direction of a port or address primitive */
+    int dir;
+    /** The protocol number, or the lowest port of a port primitive */
+    int low;
+    /** The highest port of a port primitive */
+    int high;
+    /** The address of an address primitive */
+    byte[] address;
+    /** The prefix length of an address primitive */
+    int prefix;
+    /** The operands of a boolean operation */
+    FilterNode left, right;
+    /** Operations */
+    static final int AND = 0;
+    static final int OR = 1;
+    static final int NOT = 2;
+    static final int IPV4 = 3;
+    static final int IPV6 = 4;
+    static final int PROTOCOL = 5;
+    static final int PORT = 6;
+    static final int ADDRESS = 7;
+    /** Directions */
+    static final int ANY = 0;
+    static final int SRC = 1;
+    static final int DST = 2;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new filter node with the given operation. */
+    FilterNode(int op) {
+        this.op = op;
+        dir = ANY;
+    }
+    
+    /** METHODS */
+    
+    /** Evaluate the node against the current record of the given captor. */
+    boolean accept(RawPacketCaptor c) {
+        switch (op) {
+            case AND: return left.accept(c) && right.accept(c);
+            case OR: return left.accept(c) || right.accept(c);
+            case NOT: return !left.accept(c);
+            case IPV4: return c.ipVersion() == 4;
+            case IPV6: return c.ipVersion() == 6;
+            case PROTOCOL: return c.ipProtocol() == low;
+            case PORT:
+                return (dir != DST && inRange(c.transportPort(true))) ||
+                       (dir != SRC && inRange(c.transportPort(false)));
+            case ADDRESS:
+                return (dir != DST && c.addressMatches(true, address, prefix)) ||
+                       (dir != SRC && c.addressMatches(false, address, prefix));
+            default: return false;
+        }
+    }
+    
+    /** Return true if the given port is inside the node port range. */
+    private boolean inRange(int port) {
+        return port >= low && port <= high;
+    }
+    
+}
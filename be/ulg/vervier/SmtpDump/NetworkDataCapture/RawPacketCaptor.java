@@ -0,0 +1,394 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a network PDUs reader which decodes the captured
+ * records itself, without any native library. Subclasses only have to load
+ * the raw bytes of the next record into a ByteBuffer; the link, network and
+ * transport headers are then located in place and can be retrieved as
+ * zero-copy ByteBuffer slices. A jpcap TCP packet is only built when read() is
+ * called and only for TCP records; other records are skipped.
+ * 
+ * Supported link types are Ethernet (with 802.1Q tags), Linux cooked capture,
+ * BSD loopback and raw IP.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import jpcap.packet.TCPPacket;
+
+public abstract class RawPacketCaptor extends PacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The buffer holding the current record (network byte order) */
+    protected ByteBuffer buf;
+    /** Current record: link-layer header type */
+    protected int rec_link_type;
+    /** Current record: capture time (in sec) */
+    protected long rec_sec;
+    /** Current record: capture time (in usec) */
+    protected long rec_usec;
+    /** Current record: number of bytes captured */
+    protected int rec_caplen;
+    /** Current record: original length of the packet */
+    protected int rec_len;
+    /** Current record: index of the link-layer header in the buffer */
+    protected int link_off;
+    /** Current record: index of the end of the record in the buffer */
+    protected int rec_end;
+    /** Current record: index of the network header in the buffer */
+    private int net_off;
+    /** Current record: index of the transport header in the buffer */
+    private int trans_off;
+    /** Current record: index of the payload in the buffer */
+    private int payload_off;
+    /** Current record: IP version (4 or 6), 0 if not an IP packet */
+    private int ip_version;
+    /** Current record: IP protocol number, -1 if unknown */
+    private int ip_protocol;
+    /** The compiled packet filter, null if no filter is set */
+    private PacketFilter filter;
+    /** The largest record accepted regardless of the snapshot length */
+    protected static final int MAX_RECORD_LEN = 262144;
+    /** Link types */
+    protected static final int LINKTYPE_NULL = 0;
+    protected static final int LINKTYPE_ETHERNET = 1;
+    protected static final int LINKTYPE_RAW_OLD = 12;
+    protected static final int LINKTYPE_RAW_OBSD = 14;
+    protected static final int LINKTYPE_RAW = 101;
+    protected static final int LINKTYPE_LINUX_SLL = 113;
+    protected static final int LINKTYPE_IPV4 = 228;
+    protected static final int LINKTYPE_IPV6 = 229;
+    /** Ether types */
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+    /** IP protocol number of TCP */
+    protected static final int PROTO_TCP = 6;
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor. */
+    public RawPacketCaptor() { super(); }
+    
+    /** Creates a raw packet captor with the given resource identifier. */
+    public RawPacketCaptor(String resource_identifier) {
+        super(resource_identifier);
+    }
+    
+    /** METHODS */
+    
+    /** Read the next TCP PDU from the input resource. Records which are not
+     * TCP segments or which are rejected by the packet filter are skipped
+     * without building any packet object. Return null at the end of the
+     * resource. */
+    public jpcap.packet.Packet read() throws PacketCaptorException {
+        while (nextRecord()) {
+            if (decodeRecord() && ip_protocol == PROTO_TCP &&
+                (filter == null || filter.accept(this)))
+                return (packet = buildTCPPacket());
+        }
+        return (packet = null);
+    }
+    
+    /** Set and compile the packet filter expression. */
+    public void setFilter(String expression) throws PacketCaptorException {
+        super.setFilter(expression);
+        filter = (filter_expression == null) ?
+            null : new PacketFilter(filter_expression);
+    }
+    
+    /** Move to the next record of the input resource without building any
+     * packet object. Return false at the end of the resource. */
+    public boolean nextRecord() throws PacketCaptorException {
+        if (!is_resource_open)
+            throw new PacketCaptorException("packet-captor:no open captor");
+        ip_version = 0;
+        ip_protocol = -1;
+        if (!loadRecord()) return false;
+        net_off = trans_off = payload_off = link_off;
+        return true;
+    }
+    
+    /** Locate the network and transport headers of the current record. Return
+     * true if the record holds a first (or unfragmented) IP datagram whose
+     * transport header has been located, false otherwise. */
+    public boolean decodeRecord() {
+        int i = link_off;
+        int version = 0;
+        switch (rec_link_type) {
+            case LINKTYPE_ETHERNET:
+                if (rec_end - i < 14) return false;
+                int ether_type = getUShort(i + 12);
+                i += 14;
+                while ((ether_type == ETHERTYPE_VLAN ||
+                        ether_type == ETHERTYPE_QINQ) && rec_end - i >= 4) {
+                    ether_type = getUShort(i + 2);
+                    i += 4;
+                }
+                if (ether_type == ETHERTYPE_IPV4) version = 4;
+                else if (ether_type == ETHERTYPE_IPV6) version = 6;
+                break;
+            case LINKTYPE_LINUX_SLL:
+                if (rec_end - i < 16) return false;
+                int protocol = getUShort(i + 14);
+                i += 16;
+                if (protocol == ETHERTYPE_IPV4) version = 4;
+                else if (protocol == ETHERTYPE_IPV6) version = 6;
+                break;
+            case LINKTYPE_NULL:
+                if (rec_end - i < 4) return false;
+                i += 4;
+                // the address family is in the capturing host byte order, so
+                // rely on the IP version field instead
+                if (rec_end - i > 0) version = (buf.get(i) >> 4) & 0x0F;
+                break;
+            case LINKTYPE_RAW:
+            case LINKTYPE_RAW_OLD:
+            case LINKTYPE_RAW_OBSD:
+            case LINKTYPE_IPV4:
+            case LINKTYPE_IPV6:
+                if (rec_end - i > 0) version = (buf.get(i) >> 4) & 0x0F;
+                break;
+            default:
+                return false;
+        }
+        net_off = trans_off = payload_off = i;
+        if (version == 4) {
+            if (rec_end - i < 20) return false;
+            int ihl = (buf.get(i) & 0x0F) * 4;
+            int total_len = getUShort(i + 2);
+            if (ihl < 20 || rec_end - i < ihl) return false;
+            // strip link-layer padding
+            if (total_len >= ihl && i + total_len < rec_end)
+                rec_end = i + total_len;
+            ip_version = 4;
+            ip_protocol = buf.get(i + 9) & 0xFF;
+            // only the first fragment carries the transport header
+            if ((getUShort(i + 6) & 0x1FFF) != 0) return false;
+            i += ihl;
+        } else if (version == 6) {
+            if (rec_end - i < 40) return false;
+            int payload_len = getUShort(i + 4);
+            if (i + 40 + payload_len < rec_end)
+                rec_end = i + 40 + payload_len;
+            ip_version = 6;
+            int next_header = buf.get(i + 6) & 0xFF;
+            i += 40;
+            // skip hop-by-hop, routing and destination options headers
+            while ((next_header == 0 || next_header == 43 ||
+                    next_header == 60) && rec_end - i >= 8) {
+                int ext_len = ((buf.get(i + 1) & 0xFF) + 1) * 8;
+                next_header = buf.get(i) & 0xFF;
+                i += ext_len;
+            }
+            // fragmented datagram, not handled
+            if (next_header == 44 || i > rec_end) return false;
+            ip_protocol = next_header;
+        } else {
+            return false;
+        }
+        trans_off = payload_off = i;
+        if (ip_protocol == PROTO_TCP) {
+            if (rec_end - i < 20) return false;
+            int data_off = ((buf.get(i + 12) >> 4) & 0x0F) * 4;
+            if (data_off < 20 || rec_end - i < data_off) return false;
+            payload_off = i + data_off;
+        }
+        return true;
+    }
+    
+    /** Retrieve a slice of the link-layer header of the current record. */
+    public ByteBuffer linkHeader() { return slice(link_off, net_off); }
+    
+    /** Retrieve a slice of the network header of the current record. */
+    public ByteBuffer networkHeader() { return slice(net_off, trans_off); }
+    
+    /** Retrieve a slice of the transport header of the current record. */
+    public ByteBuffer transportHeader() { return slice(trans_off, payload_off); }
+    
+    /** Retrieve a slice of the payload of the current record. */
+    public ByteBuffer payload() { return slice(payload_off, rec_end); }
+    
+    /** Retrieve the capture time (in sec) of the current record. */
+    public long recordSec() { return rec_sec; }
+    
+    /** Retrieve the capture time (in usec) of the current record. */
+    public long recordUsec() { return rec_usec; }
+    
+    /** Retrieve the captured length of the current record. */
+    public int recordCapturedLength() { return rec_caplen; }
+    
+    /** Retrieve the original length of the current record. */
+    public int recordLength() { return rec_len; }
+    
+    /** Retrieve the link-layer header type of the current record. */
+    public int recordLinkType() { return rec_link_type; }
+    
+    /** Retrieve the IP version of the current record, 0 if not IP. */
+    public int ipVersion() { return ip_version; }
+    
+    /** Retrieve the IP protocol number of the current record, -1 if unknown. */
+    public int ipProtocol() { return ip_protocol; }
+    
+    /** Retrieve a direction-independent hash of the addresses and ports of the
+     * current decoded record: both directions of a flow have the same hash. */
+    public int flowHash() {
+        int a = endpointHash(true);
+        int b = endpointHash(false);
+        return mix(Math.min(a, b) * 0x9E3779B9 + Math.max(a, b));
+    }
+    
+    /** Retrieve the source (or destination) port of the current decoded
+     * record, -1 if it is not a TCP, UDP or SCTP packet. */
+    int transportPort(boolean src) {
+        if (ip_protocol != PROTO_TCP && ip_protocol != 17 && ip_protocol != 132)
+            return -1;
+        if (trans_off == net_off || rec_end - trans_off < 4) return -1;
+        return getUShort(src ? trans_off : trans_off + 2);
+    }
+    
+    /** Return true if the first bits of the source (or destination) address of
+     * the current decoded record match the given address, false otherwise. */
+    boolean addressMatches(boolean src, byte[] address, int prefix_len) {
+        int i;
+        if (ip_version == 4 && address.length == 4)
+            i = net_off + (src ? 12 : 16);
+        else if (ip_version == 6 && address.length == 16)
+            i = net_off + (src ? 8 : 24);
+        else return false;
+        int j = 0;
+        for (; prefix_len >= 8; j++, prefix_len -= 8)
+            if (buf.get(i + j) != address[j]) return false;
+        if (prefix_len == 0) return true;
+        int mask = (0xFF << (8 - prefix_len)) & 0xFF;
+        return ((buf.get(i + j) ^ address[j]) & mask) == 0;
+    }
+    
+    /** Hash the source (or destination) address and port of the current
+     * decoded record. */
+    private int endpointHash(boolean src) {
+        int h = 0;
+        int i;
+        int len;
+        if (ip_version == 4) {
+            i = net_off + (src ? 12 : 16);
+            len = 4;
+        } else if (ip_version == 6) {
+            i = net_off + (src ? 8 : 24);
+            len = 16;
+        } else {
+            return 0;
+        }
+        for (int j = 0; j < len; j += 4)
+            h = mix(h ^ buf.getInt(i + j));
+        return mix(h ^ transportPort(src));
+    }
+    
+    /** Finalization mix of MurmurHash3. */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+    /** Load the raw bytes of the next record into the buffer and set the
+     * current record fields. Return false at the end of the resource. */
+    protected abstract boolean loadRecord() throws PacketCaptorException;
+    
+    /** Build a jpcap TCP packet from the current decoded record. */
+    private TCPPacket buildTCPPacket() throws PacketCaptorException {
+        int t = trans_off;
+        int flags = buf.get(t + 13) & 0xFF;
+        TCPPacket p = new TCPPacket(getUShort(t),
+                                    getUShort(t + 2),
+                                    buf.getInt(t + 4) & 0xFFFFFFFFL,
+                                    buf.getInt(t + 8) & 0xFFFFFFFFL,
+                                    (flags & 0x20) != 0,
+                                    (flags & 0x10) != 0,
+                                    (flags & 0x08) != 0,
+                                    (flags & 0x04) != 0,
+                                    (flags & 0x02) != 0,
+                                    (flags & 0x01) != 0,
+                                    (flags & 0x80) != 0,
+                                    (flags & 0x40) != 0,
+                                    getUShort(t + 14),
+                                    getUShort(t + 18));
+        int n = net_off;
+        try {
+            if (ip_version == 4) {
+                int tos = buf.get(n + 1) & 0xFF;
+                int frag = getUShort(n + 6);
+                p.setIPv4Parameter(tos >> 5,
+                                   (tos & 0x10) != 0,
+                                   (tos & 0x08) != 0,
+                                   (tos & 0x04) != 0,
+                                   tos & 0x03,
+                                   (frag & 0x8000) != 0,
+                                   (frag & 0x4000) != 0,
+                                   (frag & 0x2000) != 0,
+                                   frag & 0x1FFF,
+                                   getUShort(n + 4),
+                                   buf.get(n + 8) & 0xFF,
+                                   PROTO_TCP,
+                                   InetAddress.getByAddress(getBytes(n + 12, 4)),
+                                   InetAddress.getByAddress(getBytes(n + 16, 4)));
+            } else {
+                int first = buf.getInt(n);
+                p.setIPv6Parameter((first >> 20) & 0xFF,
+                                   first & 0xFFFFF,
+                                   PROTO_TCP,
+                                   buf.get(n + 7) & 0xFF,
+                                   InetAddress.getByAddress(getBytes(n + 8, 16)),
+                                   InetAddress.getByAddress(getBytes(n + 24, 16)));
+            }
+        } catch (UnknownHostException uhe) {
+            throw new PacketCaptorException("Invalid IP address in " +
+                                           resource_identifier);
+        }
+        p.option = (payload_off - t > 20) ?
+            getBytes(t + 20, payload_off - t - 20) : null;
+        p.sec = rec_sec;
+        p.usec = rec_usec;
+        p.caplen = rec_caplen;
+        p.len = rec_len;
+        p.header = getBytes(link_off, payload_off - link_off);
+        p.data = getBytes(payload_off, rec_end - payload_off);
+        return p;
+    }
+    
+    /** Retrieve the unsigned network-order short at the given index. */
+    protected int getUShort(int i) {
+        return ((buf.get(i) & 0xFF) << 8) | (buf.get(i + 1) & 0xFF);
+    }
+    
+    /** Copy the given region of the buffer. */
+    private byte[] getBytes(int from, int length) {
+        byte[] b = new byte[length];
+        ByteBuffer d = buf.duplicate();
+        d.position(from);
+        d.get(b);
+        return b;
+    }
+    
+    /** Retrieve a read-only slice of the buffer. */
+    private ByteBuffer slice(int from, int to) {
+        ByteBuffer b = buf.asReadOnlyBuffer();
+        b.limit(to);
+        b.position(from);
+        return b.slice();
+    }
+    
+}
@@ -0,0 +1,126 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a network PDUs reader fed by another thread through a
+ * bounded single-producer single-consumer ring buffer. Exactly one thread puts
+ * packets into the ring and exactly one thread reads them, so that no lock is
+ * needed: each side only publishes its own position. A side waiting for the
+ * other one spins briefly, then yields and finally parks.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class RingPacketCaptor extends PacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The ring slots */
+    private jpcap.packet.Packet[] ring;
+    /** The slot index mask (the capacity is a power of 2) */
+    private int mask;
+    /** The position of the next packet to read, published by the reader */
+    private AtomicLong head;
+    /** The position of the next packet to put, published by the writer */
+    private AtomicLong tail;
+    /** The last head position seen by the writer */
+    private long cached_head;
+    /** The last tail position seen by the reader */
+    private long cached_tail;
+    /** True once the writer has put its last packet */
+    private volatile boolean finished;
+    /** True once the reader has stopped reading */
+    private volatile boolean abandoned;
+    /** The number of busy waiting rounds before yielding */
+    private static final int SPIN_ROUNDS = 64;
+    /** The number of yielding rounds before parking */
+    private static final int YIELD_ROUNDS = 64;
+    /** The parking time (in nsec) */
+    private static final long PARK_NANOS = 50000;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new ring packet captor holding at least the given number of
+     * packets. */
+    public RingPacketCaptor(String resource_identifier, int capacity) {
+        super(resource_identifier);
+        int c = 1;
+        while (c < capacity) c <<= 1;
+        ring = new jpcap.packet.Packet[c];
+        mask = c - 1;
+        head = new AtomicLong(0);
+        tail = new AtomicLong(0);
+    }
+    
+    /** METHODS */
+    
+    /** Open the reading side of the ring. */
+    public void open() throws PacketCaptorException {
+        is_resource_open = true;
+    }
+    
+    /** Put a packet into the ring, waiting for a free slot. Called by the
+     * writer thread only. Return false if the reader has stopped reading. */
+    public boolean put(jpcap.packet.Packet p) {
+        long t = tail.get();
+        int rounds = 0;
+        while (t - cached_head == ring.length) {
+            if (abandoned) return false;
+            cached_head = head.get();
+            if (t - cached_head == ring.length) rounds = backoff(rounds);
+        }
+        ring[(int)t & mask] = p;
+        tail.lazySet(t + 1);
+        return true;
+    }
+    
+    /** Mark the end of the packets. Called by the writer thread only. */
+    public void finish() {
+        finished = true;
+    }
+    
+    /** Read the next PDU, waiting for the writer. Return null once the writer
+     * has finished and every packet has been read. */
+    public jpcap.packet.Packet read() throws PacketCaptorException {
+        if (!is_resource_open)
+            throw new PacketCaptorException("packet-captor:no open captor");
+        long h = head.get();
+        int rounds = 0;
+        while (h == cached_tail) {
+            // the end flag is read before the tail, which is published first
+            boolean done = finished;
+            cached_tail = tail.get();
+            if (h != cached_tail) break;
+            if (done) return (packet = null);
+            rounds = backoff(rounds);
+        }
+        int i = (int)h & mask;
+        packet = ring[i];
+        ring[i] = null;
+        head.lazySet(h + 1);
+        return packet;
+    }
+    
+    /** Stop reading: the writer drops the next packets. */
+    public void close() {
+        abandoned = true;
+        is_resource_open = false;
+    }
+    
+    /** Wait for the other side of the ring and return the next round. */
+    private static int backoff(int rounds) {
+        if (rounds >= SPIN_ROUNDS + YIELD_ROUNDS)
+            LockSupport.parkNanos(PARK_NANOS);
+        else if (rounds >= SPIN_ROUNDS)
+            Thread.yield();
+        return rounds + 1;
+    }
+    
+}
@@ -0,0 +1,95 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the capture of network PDUs from a classic PCAP file
+ * read as a sequential stream. It is used for gzip-compressed PCAP files
+ * (.pcap.gz) which cannot be memory-mapped.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+public class StreamPCAPFileReader extends StreamPacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The record header buffer */
+    private byte[] rec_header;
+    /** True if record timestamps are in nanoseconds, false if microseconds */
+    private boolean nsec_resolution;
+    /** The link-layer header type of the file */
+    private int link_type;
+    /** The maximum length of captured packets */
+    private int snap_len;
+    /** The PCAP file global header length */
+    private static final int GLOBAL_HEADER_LEN = 24;
+    /** The PCAP record header length */
+    private static final int RECORD_HEADER_LEN = 16;
+    /** PCAP magic number, microsecond resolution */
+    private static final int MAGIC_USEC = 0xa1b2c3d4;
+    /** PCAP magic number, nanosecond resolution */
+    private static final int MAGIC_NSEC = 0xa1b23c4d;
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor. */
+    public StreamPCAPFileReader() { this(null); }
+    
+    /** Create a new stream PCAP file reader with the given PCAP file name. */
+    public StreamPCAPFileReader(String fileName) {
+        super(fileName);
+        rec_header = new byte[GLOBAL_HEADER_LEN];
+    }
+    
+    /** METHODS */
+    
+    /** Retrieve the link-layer header type of the file. */
+    public int getLinkType() { return link_type; }
+    
+    /** Read and check the PCAP global header. */
+    protected void readFileHeader() throws PacketCaptorException {
+        if (!readFully(rec_header, 0, GLOBAL_HEADER_LEN))
+            throw new PacketCaptorException("Invalid PCAP file " +
+                                           resource_identifier);
+        swapped = false;
+        int magic = getFileInt(rec_header, 0);
+        if (Integer.reverseBytes(magic) == MAGIC_USEC ||
+            Integer.reverseBytes(magic) == MAGIC_NSEC) {
+            swapped = true;
+            magic = Integer.reverseBytes(magic);
+        } else if (magic != MAGIC_USEC && magic != MAGIC_NSEC) {
+            throw new PacketCaptorException("Invalid PCAP file " +
+                                           resource_identifier);
+        }
+        nsec_resolution = magic == MAGIC_NSEC;
+        snap_len = getFileInt(rec_header, 16);
+        link_type = getFileInt(rec_header, 20) & 0x0FFFFFFF;
+    }
+    
+    /** Read the next record of the file. Return false at the end of the
+     * file. */
+    protected boolean loadRecord() throws PacketCaptorException {
+        // a truncated record at the end of the file is ignored
+        if (!readFully(rec_header, 0, RECORD_HEADER_LEN)) return false;
+        int incl_len = getFileInt(rec_header, 8);
+        if (incl_len < 0 || incl_len > Math.max(snap_len, MAX_RECORD_LEN))
+            throw new PacketCaptorException("Corrupted PCAP record in file " +
+                                           resource_identifier);
+        ensureCapacity(incl_len);
+        if (!readFully(rec_buffer, 0, incl_len)) return false;
+        long ts_frac = getFileInt(rec_header, 4) & 0xFFFFFFFFL;
+        rec_link_type = link_type;
+        rec_sec = getFileInt(rec_header, 0) & 0xFFFFFFFFL;
+        rec_usec = nsec_resolution ? ts_frac / 1000 : ts_frac;
+        rec_caplen = incl_len;
+        rec_len = getFileInt(rec_header, 12);
+        link_off = 0;
+        rec_end = incl_len;
+        return true;
+    }
+    
+}
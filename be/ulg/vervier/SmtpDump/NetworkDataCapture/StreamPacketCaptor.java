@@ -0,0 +1,131 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a raw network PDUs reader over a sequential stream.
+ * The capture file is read through large buffers and decompressed on the fly
+ * if it is gzip-compressed, so that no temporary file is ever written. Each
+ * record is loaded into a reusable buffer.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.NetworkDataCapture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public abstract class StreamPacketCaptor extends RawPacketCaptor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The input stream */
+    protected InputStream in;
+    /** The reusable record buffer */
+    protected byte[] rec_buffer;
+    /** True if the multi-byte fields of the file are in little-endian byte
+     * order */
+    protected boolean swapped;
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor. */
+    public StreamPacketCaptor() { this(null); }
+    
+    /** Creates a stream packet captor with the given file name. */
+    public StreamPacketCaptor(String fileName) {
+        super(fileName);
+        rec_buffer = new byte[65536];
+        buf = ByteBuffer.wrap(rec_buffer);
+    }
+    
+    /** METHODS */
+    
+    /** Open the file to read PDUs from and read the file header. */
+    public void open() throws PacketCaptorException {
+        if (is_resource_open) close();
+        if (resource_identifier == null || resource_identifier.isEmpty())
+            throw new PacketCaptorException("Unable to capture packet from file "
+                                           + resource_identifier);
+        try {
+            in = CaptureFileFormat.openStream(resource_identifier);
+        } catch (IOException ioe) {
+            throw new PacketCaptorException("Unable to open file " +
+                                           resource_identifier);
+        }
+        is_resource_open = true;
+        try {
+            readFileHeader();
+        } catch (PacketCaptorException pce) {
+            close();
+            throw pce;
+        }
+    }
+    
+    /** Close the current input file. */
+    public void close() {
+        if (!is_resource_open) return;
+        try {
+            in.close();
+        } catch (IOException ioe) {}
+        in = null;
+        is_resource_open = false;
+    }
+    
+    /** Set the name of the input file to read from. */
+    public void setFileName(String fileName) {
+        setResourceIdentifier(fileName);
+    }
+    
+    /** Retrieve the name of the input file to read from. */
+    public String getFileName() {
+        return getResourceIdentifier();
+    }
+    
+    /** Read and check the file header. */
+    protected abstract void readFileHeader() throws PacketCaptorException;
+    
+    /** Read exactly the given number of bytes into the given array. Return
+     * false if the end of the file is reached before. */
+    protected boolean readFully(byte[] b, int off, int len)
+        throws PacketCaptorException {
+        try {
+            while (len > 0) {
+                int n = in.read(b, off, len);
+                if (n < 0) return false;
+                off += n;
+                len -= n;
+            }
+        } catch (IOException ioe) {
+            throw new PacketCaptorException("Unable to read file " +
+                                           resource_identifier + " (" +
+                                           ioe.getMessage() + ")");
+        }
+        return true;
+    }
+    
+    /** Make sure the record buffer can hold the given number of bytes. */
+    protected void ensureCapacity(int len) {
+        if (rec_buffer.length >= len) return;
+        rec_buffer = new byte[Math.max(len, rec_buffer.length * 2)];
+        buf = ByteBuffer.wrap(rec_buffer);
+    }
+    
+    /** Retrieve the int in the file byte order at the given index. */
+    protected int getFileInt(byte[] b, int i) {
+        int v = ((b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16) |
+                ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+        return swapped ? Integer.reverseBytes(v) : v;
+    }
+    
+    /** Retrieve the unsigned short in the file byte order at the given
+     * index. */
+    protected int getFileUShort(byte[] b, int i) {
+        return swapped ? ((b[i + 1] & 0xFF) << 8) | (b[i] & 0xFF) :
+                         ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+    }
+    
+}
@@ -0,0 +1,67 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a statement of a SMTP session as a character sequence
+ * viewing the bytes of the statement in the arena of the session, without
+ * copying nor decoding them. The bytes are read as US-ASCII characters, a
+ * byte out of the US-ASCII range being read as the replacement character
+ * U+FFFD, as when the payload is decoded into a String. The sequence may thus
+ * be matched directly by a java.util.regex pattern.
+ * As a StringBuilder, a sequence is only equal to itself: its toString method
+ * returns the decoded String to be compared.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+public final class ASCIISequence implements CharSequence {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The arena holding the bytes of the sequence */
+    private final StatementArena arena;
+    /** The offset of the sequence in the arena */
+    private final int offset;
+    /** The length of the sequence */
+    private final int length;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new sequence viewing the bytes of the given arena at the given
+     * offset and of the given length. */
+    ASCIISequence(StatementArena arena, int offset, int length) {
+        this.arena = arena;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    /** METHODS */
+    
+    /** Retrieve the length of the sequence. */
+    public int length() { return length; }
+    
+    /** Retrieve the character at the given index of the sequence. */
+    public char charAt(int index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index " + index);
+        byte c = arena.array()[offset + index];
+        return (c >= 0) ? (char)c : '\uFFFD';
+    }
+    
+    /** Retrieve the subsequence between the given indexes, as a view over the
+     * same bytes. */
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("range " + start + "," + end);
+        return new ASCIISequence(arena, offset + start, end - start);
+    }
+    
+    /** Return the String representation of the sequence, i.e. its decoded
+     * bytes. */
+    public String toString() { return arena.decode(offset, length); }
+    
+}
@@ -0,0 +1,188 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a one-pass scanner of the header of an IMF message
+ * (RFC 5322). The header ends at the first empty line, or at the first line
+ * made of the dot alone if the message has no body. Each header field begins
+ * at the start of a line with its name followed by a colon, the following
+ * lines beginning with a blank (folded lines) belonging to the same field.
+ * The name of a field is mapped to its IMF statement type by a perfect hash
+ * table: the hash of a name, from its length and its first and last letters
+ * (case-folded), is unique among the names of the fields known. The fields
+ * beginning with "X-" are X_FIELD fields, the other fields have no type.
+ * The header is scanned on the bytes of the message.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+class IMFHeaderScanner {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The number of fields of the last header scanned */
+    private int field_count;
+    /** The index in the message where each field begins */
+    private int[] field_start;
+    /** The IMF statement type of each field */
+    private IMFStatementType[] field_type;
+    /** The size of the hash table, a power of two */
+    private static final int TABLE_SIZE = 64;
+    /** The names of the known fields, in lower case, by hash */
+    private static final String[] FIELD_NAME;
+    /** The IMF statement types of the known fields, by hash */
+    private static final IMFStatementType[] FIELD_TYPE;
+    
+    static {
+        FIELD_NAME = new String[TABLE_SIZE];
+        FIELD_TYPE = new IMFStatementType[TABLE_SIZE];
+        put("return-path", IMFStatementType.RETURN_PATH);
+        put("received", IMFStatementType.RECEIVED);
+        put("resent-date", IMFStatementType.RESENT_DATE);
+        put("resent-from", IMFStatementType.RESENT_FROM);
+        put("resent-sender", IMFStatementType.RESENT_SENDER);
+        put("resent-to", IMFStatementType.RESENT_TO);
+        put("resent-cc", IMFStatementType.RESENT_CC);
+        put("resent-bcc", IMFStatementType.RESENT_BCC);
+        put("resent-message-id", IMFStatementType.RESENT_MESSAGE_ID);
+        put("date", IMFStatementType.DATE);
+        put("from", IMFStatementType.FROM);
+        put("sender", IMFStatementType.SENDER);
+        put("reply-to", IMFStatementType.REPLY_TO);
+        put("to", IMFStatementType.TO);
+        put("cc", IMFStatementType.CC);
+        put("bcc", IMFStatementType.BCC);
+        put("message-id", IMFStatementType.MESSAGE_ID);
+        put("in-reply-to", IMFStatementType.IN_REPLY_TO);
+        put("references", IMFStatementType.REFERENCES);
+        put("subject", IMFStatementType.SUBJECT);
+        put("comments", IMFStatementType.COMMENTS);
+        put("keywords", IMFStatementType.KEYWORDS);
+        put("mime-version", IMFStatementType.MIME_VERSION);
+        put("content-type", IMFStatementType.CONTENT_TYPE);
+        put("content-transfer-encoding",
+            IMFStatementType.CONTENT_TRANSFER_ENCODING);
+        put("content-id", IMFStatementType.CONTENT_ID);
+        put("content-description", IMFStatementType.CONTENT_DESCRIPTION);
+    }
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor. */
+    IMFHeaderScanner() {
+        field_count = 0;
+        field_start = new int[16];
+        field_type = new IMFStatementType[16];
+    }
+    
+    /** METHODS */
+    
+    /** Scan the header of the IMF message held by the given buffer. Return
+     * the length of the header, up to the CRLF ending its last line, or -1 if
+     * the message has no header end. The indexes are relative to the
+     * beginning of the message. */
+    int scan(byte[] b, int off, int len) {
+        int end = off + len;
+        int s = off;
+        field_count = 0;
+        while (s < end) {
+            byte c = b[s];
+            // an empty line, or the dot alone, ends the header
+            if (s > off && ((c == '\r' && s + 1 < end && b[s + 1] == '\n') ||
+                            (c == '.' && s + 2 < end && b[s + 1] == '\r' &&
+                             b[s + 2] == '\n')))
+                return s - off;
+            // a line beginning with a blank continues the current field
+            if (c != ' ' && c != '\t') {
+                int i = s;
+                while (i < end && isNameChar(b[i])) i++;
+                int j = i;
+                while (j < end && (b[j] == ' ' || b[j] == '\t')) j++;
+                if (i > s && j < end && b[j] == ':')
+                    addField(s - off, lookup(b, s, i));
+            }
+            s = nextLine(b, s, end);
+        }
+        return -1;
+    }
+    
+    /** Retrieve the number of fields of the last header scanned. */
+    int fieldCount() { return field_count; }
+    
+    /** Retrieve the index in the message where the given field begins. */
+    int fieldStart(int i) { return field_start[i]; }
+    
+    /** Retrieve the IMF statement type of the given field, null if the field
+     * is not known. */
+    IMFStatementType fieldType(int i) { return field_type[i]; }
+    
+    /** Record a field beginning at the given index. */
+    private void addField(int start, IMFStatementType type) {
+        if (field_count == field_start.length) {
+            int[] s = new int[field_count << 1];
+            IMFStatementType[] t = new IMFStatementType[field_count << 1];
+            System.arraycopy(field_start, 0, s, 0, field_count);
+            System.arraycopy(field_type, 0, t, 0, field_count);
+            field_start = s;
+            field_type = t;
+        }
+        field_start[field_count] = start;
+        field_type[field_count++] = type;
+    }
+    
+    /** Retrieve the IMF statement type of the field name held by the given
+     * buffer between the given indexes, null if the field is not known. */
+    private static IMFStatementType lookup(byte[] b, int start, int end) {
+        int len = end - start;
+        char first = toLowerCase(b[start]);
+        if (len > 2 && first == 'x' && b[start + 1] == '-')
+            return IMFStatementType.X_FIELD;
+        int h = hash(len, first, toLowerCase(b[end - 1]));
+        String name = FIELD_NAME[h];
+        if (name == null || name.length() != len) return null;
+        for (int k = 0; k < len; k++)
+            if (toLowerCase(b[start + k]) != name.charAt(k)) return null;
+        return FIELD_TYPE[h];
+    }
+    
+    /** Add the given field name, in lower case, to the hash table. */
+    private static void put(String name, IMFStatementType type) {
+        int h = hash(name.length(), name.charAt(0),
+                     name.charAt(name.length() - 1));
+        if (FIELD_NAME[h] != null)
+            throw new IllegalStateException("imf-header-scanner:collision");
+        FIELD_NAME[h] = name;
+        FIELD_TYPE[h] = type;
+    }
+    
+    /** Compute the hash of a field name from its length and its first and
+     * last letters, in lower case. */
+    private static int hash(int len, char first, char last) {
+        return (len + 6 * first + 7 * last) & (TABLE_SIZE - 1);
+    }
+    
+    /** Retrieve the index of the line following the line beginning at the
+     * given index, i.e. after its CRLF, or the end index if there is no such
+     * line. */
+    private static int nextLine(byte[] b, int s, int end) {
+        for (int i = s + 1; i < end; i++)
+            if (b[i] == '\n' && b[i - 1] == '\r') return i + 1;
+        return end;
+    }
+    
+    /** Return true if the given byte may be part of a field name, i.e. a
+     * printable US-ASCII character other than the colon. */
+    private static boolean isNameChar(byte c) {
+        return c > ' ' && c < 127 && c != ':';
+    }
+    
+    /** Convert an ASCII upper case letter to lower case. */
+    private static char toLowerCase(byte c) {
+        return (c >= 'A' && c <= 'Z') ? (char)(c | 0x20) : (char)(c & 0xFF);
+    }
+    
+}
@@ -12,6 +12,13 @@
  * - and the SMTP termination sequence.
  * Warning: concatenating IMF statements may not return the original IMF payload
  * as character sequences may be associated with multiple statements.
+ * A large message may be truncated by the parser: only its header and the
+ * beginning of its body are then held, the message body statement ending
+ * where the visible body ends. The bytes not held, up to the termination
+ * sequence included, are only described by their length, their SHA-256
+ * digest and their Adler-32 checksum.
+ * The IMF statements may be extracted on their first access only (see
+ * SMTPParsePlan).
  *
  */
 
@@ -25,7 +32,7 @@ public class IMFMessage extends SessionStatement {
     /** INSTANCE VARIABLES */
     
     /** The IMF message */
-    private String message;
+    private CharSequence message;
     /** The index in the reassembled message where this part of message
      * starts */
     private int start_msg_index;
@@ -33,6 +40,16 @@ public class IMFMessage extends SessionStatement {
     private List<IMFStatement> statements;
     /** The list of IMF fragments start index */
     private List<Integer> fragments;
+    /** The number of bytes of the message not held, 0 if the message is
+     * complete */
+    private long truncated_length;
+    /** The SHA-256 digest of the bytes not held, null if none */
+    private byte[] truncated_digest;
+    /** The Adler-32 checksum of the bytes not held */
+    private long truncated_checksum;
+    /** The extractor of the IMF statements, if their extraction is
+     * deferred */
+    private IMFStatementExtractor extractor;
     
     /** CONSTRUCTORS */
     
@@ -42,15 +59,19 @@ public class IMFMessage extends SessionStatement {
         this.start_msg_index = start_msg_index;
         statements = new ArrayList<IMFStatement>(10);
         fragments = new ArrayList<Integer>(10);
+        truncated_length = 0;
+        truncated_digest = null;
+        truncated_checksum = 0;
+        extractor = null;
     }
     
     /** METHODS */
     
     /** Retrieve the IMF message. */
-    public String message() { return message; }
+    public CharSequence message() { return message; }
     
     /** Set the IMF message. */
-    public void message(String message) {
+    public void message(CharSequence message) {
         if (message == null) fragments.clear();
         else {
 			// remove any fragment that would be out of the message boundaries
@@ -67,7 +88,7 @@ public class IMFMessage extends SessionStatement {
     /** Return true if the message is empty, i.e. of length zero, false
      * otherwise. */
     public boolean isEmpty() {
-        return message != null ? message.isEmpty() : true;
+        return message != null ? message.length() == 0 : true;
     }
     
     /** Retrieve the index in the reassembled message where this part of message
@@ -96,30 +117,77 @@ public class IMFMessage extends SessionStatement {
     }
     
     /** Retrieve the list of IMF fragment boundaries. */
-    public List<Integer> getFragments() { return fragments; }
+    public List<Integer> getFragments() {
+        extractStatements();
+        return fragments;
+    }
     
     /** Retrieve the part of the message corresponding to the given fragment. */
-    public String getFragment(int index) {
+    public CharSequence getFragment(int index) {
         if (message == null) return null;
+        extractStatements();
         int frag_index = fragments.indexOf(index);
         int frag_start = fragments.get(frag_index);
         int frag_end = fragments.size() > frag_index + 1 ? 
             fragments.get(frag_index + 1) : message.length();
-        return message.substring(frag_start, frag_end);
+        return message.subSequence(frag_start, frag_end);
+    }
+    
+    /** Return true if the message has been truncated, i.e. its end is not
+     * held, false otherwise. */
+    public boolean isTruncated() { return truncated_length > 0; }
+    
+    /** Retrieve the number of bytes of the message not held. */
+    public long getTruncatedLength() { return truncated_length; }
+    
+    /** Retrieve the SHA-256 digest of the bytes of the message not held, null
+     * if the message is complete or if its body is not held (see
+     * SMTPParsePlan). */
+    public byte[] getTruncatedDigest() { return truncated_digest; }
+    
+    /** Retrieve the Adler-32 checksum of the bytes of the message not
+     * held. */
+    public long getTruncatedChecksum() { return truncated_checksum; }
+    
+    /** Set the length, SHA-256 digest and Adler-32 checksum of the bytes of
+     * the message not held. */
+    void truncated(long length, byte[] digest, long checksum) {
+        truncated_length = length;
+        truncated_digest = digest;
+        truncated_checksum = checksum;
+    }
+    
+    /** Set the extractor of the IMF statements, whose extraction is deferred
+     * until they are accessed, null if they are extracted. */
+    void extractor(IMFStatementExtractor extractor) {
+        this.extractor = extractor;
+    }
+    
+    /** Extract the IMF statements, if their extraction has been deferred. */
+    private void extractStatements() {
+        if (extractor != null) extractor.extract(new IMFHeaderScanner());
     }
     
     /** Retrieve the list of IMF statements. */
-    public List<IMFStatement> getStatements() { return statements; }
+    public List<IMFStatement> getStatements() {
+        extractStatements();
+        return statements;
+    }
     
     /** Retrieve the number of IMF statments in the IMF message. */
-    public int getStatementCount() { return statements.size(); }
+    public int getStatementCount() {
+        extractStatements();
+        return statements.size();
+    }
     
-    /** Retrieve the String representation of the given IMF statement. */
-    public String getStatementString(IMFStatement statement) {
-        return message.substring(statement.start(), statement.end());
+    /** Retrieve the character sequence of the given IMF statement. */
+    public CharSequence getStatementString(IMFStatement statement) {
+        return message.subSequence(statement.start(), statement.end());
     }
     
     /** Return the String representation of the IMF message. */
-    public String toString() { return message; }
+    public String toString() {
+        return message != null ? message.toString() : null;
+    }
 
 }
@@ -0,0 +1,125 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class extracts the IMF statements of a complete IMF message: its
+ * header fields, its body and its termination sequence. The message is given
+ * by its bytes in the arena of its SMTP session and by its fragments, i.e. the
+ * IMF message objects holding its parts, to which the statements are added.
+ * The extraction may be deferred until the statements of one of the fragments
+ * are accessed (see SMTPParsePlan).
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+import java.util.List;
+import java.util.ArrayList;
+
+class IMFStatementExtractor {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The arena holding the message */
+    private StatementArena arena;
+    /** The offset of the message in the arena */
+    private int message_start;
+    /** The number of bytes of the message held in the arena */
+    private int message_length;
+    /** The index in the message where its termination sequence starts */
+    private int term_seq_start;
+    /** The fragments of the message */
+    private List<IMFMessage> messages;
+    /** The index in the reassembled message where each fragment starts */
+    private List<Integer> fragments;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new extractor of the statements of the given message, whose
+     * fragments are copied. */
+    IMFStatementExtractor(StatementArena arena, int message_start,
+                          int message_length, int term_seq_start,
+                          List<IMFMessage> messages, List<Integer> fragments) {
+        this.arena = arena;
+        this.message_start = message_start;
+        this.message_length = message_length;
+        this.term_seq_start = term_seq_start;
+        this.messages = new ArrayList<IMFMessage>(messages);
+        this.fragments = new ArrayList<Integer>(fragments);
+    }
+    
+    /** METHODS */
+    
+    /** Defer the extraction until the statements of one of the fragments are
+     * accessed. */
+    void defer() {
+        for (IMFMessage m: messages) m.extractor(this);
+    }
+    
+    /** Extract the statements of the message with the given header
+     * scanner. */
+    void extract(IMFHeaderScanner header_scanner) {
+        // the fragments are no longer deferred, as their statements are
+        // accessed below
+        for (IMFMessage m: messages) m.extractor(null);
+        int header_end = 0;
+        int header_length = header_scanner.scan(arena.array(), message_start,
+                                                message_length);
+        // extract header fields, each field statement running up to the
+        // next field
+        if (header_length >= 0) {
+            header_end = header_length + 2;
+            int start_field = 0;
+            IMFStatementType type = null;
+            for (int i = 0; i < header_scanner.fieldCount(); i++) {
+                int end_field = header_scanner.fieldStart(i);
+                if (end_field > 0)
+                    getFragmentedMessages(start_field).
+                        addStatement(type, start_field, end_field);
+                start_field = end_field;
+                type = header_scanner.fieldType(i);
+            }
+            getFragmentedMessages(start_field).
+                addStatement(type, start_field, header_length);
+        }
+        // extract the message body
+        getFragmentedMessages(header_end).
+            addStatement(IMFStatementType.BODY,
+                         header_end,
+                         term_seq_start);
+        // extract the termination sequence
+        getFragmentedMessages(term_seq_start).
+            addStatement(IMFStatementType.TERM_SEQ,
+                         term_seq_start,
+                         message_length);
+    }
+    
+    /** Retrieve the fragment, of a complete IMF message, that can hold the
+     * statement located at the given index in the message. Disbaling
+     * reassembling causes every message fragments to be stored in a different
+     * IMF message object. On the contrary, enabling reassembling causes all
+     * fragments to be stored in one IMF message object. The list of messages
+     * contain the different fragment strings. The fragment list contain the
+     * index in the complete message string of the boundary between each
+     * fragment. */
+    private IMFMessage getFragmentedMessages(int stmt_index) {
+		// start from the end of the fragment list
+        for (int i = fragments.size() - 1; i >= 0; i--) {
+			// Check if the index in the complete message where the current
+			// fragment begins is lower than the index where the statement
+			// begins. If it so, the fragment can hold the statement.
+            if (i < messages.size() && stmt_index >= fragments.get(i)) {
+                if (!messages.get(i).getFragments().
+					contains(messages.get(i).getStatementCount()))
+                    messages.get(i).
+						setFragment(i, messages.get(i).getStatementCount());
+                return messages.get(i);
+            }
+        }
+        return null;
+    }
+    
+}
@@ -21,7 +21,7 @@ public class SMTPCommand extends SessionStatement {
     /** INSTANCE VARIABLES */
     
     /** The SMTP command */
-    private String command;
+    private CharSequence command;
     /** The SMTP command type, i.e. the command literal */
     private SMTPCommandType cmd_type;
     
@@ -39,22 +39,22 @@ public class SMTPCommand extends SessionStatement {
     public SMTPCommandType cmdType() { return cmd_type; }
     
     /** Retrieve the SMTP command. */
-    public String command() { return command; }
+    public CharSequence command() { return command; }
     
     /** Set the SMTP command. */
-    public void command(String command) { this.command = command; }
+    public void command(CharSequence command) { this.command = command; }
     
     /** Return the length of the SMTP command. */
     public int length() { return command.length(); }
     
     /** Return true if the command is empty, i.e. of length zero, false
      * otherwise. */
-    public boolean isEmpty() { return command.isEmpty(); }
+    public boolean isEmpty() { return command.length() == 0; }
     
     /** Return the String representation of the SMTP command, i.e. the command
      * literal and its arguments if any. */
     public String toString() {
-        return command;
+        return command.toString();
     }
 
 }
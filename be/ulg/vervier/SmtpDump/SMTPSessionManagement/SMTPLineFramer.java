@@ -0,0 +1,115 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class splits the payload stream sent by one SMTP entity into CRLF
+ * terminated lines, regardless of the TCP segment boundaries: a line may span
+ * several segments and a segment may hold several lines, e.g. the commands of
+ * a pipelining client (RFC 2920). The stream being contiguous, a line is
+ * given by its offsets in the stream and is never copied. The line ends are
+ * searched a long at a time (see ByteScanner).
+ * A line longer than MAX_LINE_LENGTH, e.g. after the session has switched to
+ * TLS, is skipped up to its end so that it is not buffered.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+import be.ulg.vervier.SmtpDump.TCPSessionManagement.TCPStream;
+import be.ulg.vervier.SmtpDump.Utils.ByteScanner;
+
+class SMTPLineFramer {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The framed stream */
+    private TCPStream stream;
+    /** The offset of the first byte not consumed, i.e. of the line being
+     * received */
+    private long position;
+    /** The offset from which the line being received is scanned for its
+     * end */
+    private long scan;
+    /** The offset of the last line framed */
+    private long line_start;
+    /** The end offset of the last line framed, after its CRLF */
+    private long line_end;
+    /** True if the line being received is too long and is skipped */
+    private boolean skipping;
+    /** The maximum length of a line, well over the 512 bytes of a command or
+     * reply line of RFC 5321 */
+    static final int MAX_LINE_LENGTH = 4096;
+    /** The line feed ending a line */
+    private static final byte LF = '\n';
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new line framer over the given stream, from its
+     * beginning. */
+    SMTPLineFramer(TCPStream stream) {
+        this.stream = stream;
+        position = 0;
+        scan = 0;
+        line_start = 0;
+        line_end = 0;
+        skipping = false;
+    }
+    
+    /** METHODS */
+    
+    /** Frame the next line ending before the given offset of the stream.
+     * Return false if there is no complete line up to the given offset. */
+    boolean next(long end) {
+        byte[] b = stream.array();
+        long base = stream.base();
+        int i = index(Math.max(scan, position));
+        int stop = index(end);
+        while ((i = ByteScanner.indexOf(b, i, stop, LF)) >= 0) {
+            if (i + base == position || b[i - 1] != '\r') {
+                i++;
+                continue;
+            }
+            line_start = position;
+            line_end = i + 1 + base;
+            position = scan = line_end;
+            i++;
+            if (!skipping) return true;
+            skipping = false;
+        }
+        scan = end;
+        if (end - position > MAX_LINE_LENGTH) {
+            // skip the line, except a CR which may start its CRLF
+            skipping = true;
+            position = (b[stop - 1] == '\r') ? end - 1 : end;
+        }
+        return false;
+    }
+    
+    /** Consume the bytes of the stream up to the given offset, which must not
+     * be behind the first byte not consumed, e.g. the bytes of an IMF
+     * message. */
+    void skipTo(long offset) {
+        position = scan = offset;
+        skipping = false;
+    }
+    
+    /** Retrieve the offset of the first byte not consumed. */
+    long position() { return position; }
+    
+    /** Retrieve the offset of the last line framed. */
+    long lineStart() { return line_start; }
+    
+    /** Retrieve the end offset of the last line framed, after its CRLF. */
+    long lineEnd() { return line_end; }
+    
+    /** Retrieve the buffer holding the stream bytes (see TCPStream.array). */
+    byte[] array() { return stream.array(); }
+    
+    /** Retrieve the index in the buffer of the given offset of the
+     * stream. */
+    int index(long offset) { return (int)(offset - stream.base()); }
+    
+}
@@ -0,0 +1,83 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the parse plan of the SMTP parser, i.e. the stages of
+ * the parsing which the modules using the SMTP sessions depend on. A stage
+ * which nothing uses is skipped or deferred:
+ * - IMF fields: the header fields, body and termination sequence statements
+ *   of an IMF message are extracted as soon as the message is complete, or
+ *   else on the first access to its statements (see IMFMessage);
+ * - message body: the body of an IMF message is held, up to the capture
+ *   limit, or else only its header is held and the bytes of its body are
+ *   counted, without being digested;
+ * - response text: the text of a SMTP response is held, or else only its
+ *   code is held and its text is empty.
+ * The default plan holds everything and extracts the IMF fields at once.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+public class SMTPParsePlan {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** True if the IMF fields are extracted as soon as a message is
+     * complete, false if they are extracted on first access */
+    private boolean imf_fields;
+    /** True if the body of the IMF messages is held, false otherwise */
+    private boolean message_body;
+    /** True if the text of the SMTP responses is held, false otherwise */
+    private boolean response_text;
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor: the full plan. */
+    public SMTPParsePlan() { this(true, true, true); }
+    
+    /** Create a new parse plan with the given stages enabled/disabled. */
+    public SMTPParsePlan(boolean imf_fields, boolean message_body,
+                         boolean response_text) {
+        this.imf_fields = imf_fields;
+        this.message_body = message_body;
+        this.response_text = response_text;
+    }
+    
+    /** METHODS */
+    
+    /** Return true if the IMF fields are extracted as soon as a message is
+     * complete, false if they are extracted on first access. */
+    public boolean imfFields() { return imf_fields; }
+    
+    /** Extract the IMF fields as soon as a message is complete, or on first
+     * access. */
+    public void imfFields(boolean imf_fields) { this.imf_fields = imf_fields; }
+    
+    /** Return true if the body of the IMF messages is held. */
+    public boolean messageBody() { return message_body; }
+    
+    /** Hold/do not hold the body of the IMF messages. */
+    public void messageBody(boolean message_body) {
+        this.message_body = message_body;
+    }
+    
+    /** Return true if the text of the SMTP responses is held. */
+    public boolean responseText() { return response_text; }
+    
+    /** Hold/do not hold the text of the SMTP responses. */
+    public void responseText(boolean response_text) {
+        this.response_text = response_text;
+    }
+    
+    /** Return the String representation of the parse plan. */
+    public String toString() {
+        return "[imf fields: " + (imf_fields ? "eager" : "lazy") +
+               ", message body: " + message_body +
+               ", response text: " + response_text + "]";
+    }
+    
+}
@@ -19,7 +19,7 @@ public class SMTPResponse extends SessionStatement {
     /** The SMTP response code */
     private int code;
     /** The SMTP response text message */
-    private String message;
+    private CharSequence message;
     
     /** CONSTRUCTORS */
     
@@ -30,7 +30,7 @@ public class SMTPResponse extends SessionStatement {
     
     /** Create a new SMTP response with the given digital code and text
      * message. */
-    SMTPResponse(int code, String message) {
+    SMTPResponse(int code, CharSequence message) {
         super(SessionStatementType.RESPONSE);
         this.code = code;
         this.message = message;
@@ -42,7 +42,7 @@ public class SMTPResponse extends SessionStatement {
     public int code() { return code; }
     
     /** Retrieve the SMTP response text message. */
-    public String message() { return message; }
+    public CharSequence message() { return message; }
     
     /** Return the String representation of the SMTP response, i.e. the 3-digit
      * code and the associated message if any. */
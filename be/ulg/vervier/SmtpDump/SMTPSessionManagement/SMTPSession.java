@@ -8,6 +8,9 @@
  * This class represents a SMTP session. It is simply a collection of SMTP
  * statements and responses recorded on a single TCP session, i.e. from one
  * client to a server.
+ * The bytes of all the statements are held by one arena per session, each
+ * statement being a character sequence viewing its bytes (see
+ * ASCIISequence).
  * 
  */
 
@@ -36,6 +39,8 @@ public class SMTPSession {
     private ArrayList<Transaction> transactions;
     /** The current SMTP transaction */
     private Transaction cur_trans;
+    /** The arena holding the bytes of the statements */
+    private StatementArena arena;
     
     /** This class defines a SMTP transaction. A SMTP transaction begins with
      * the client sending the MAIL command and ends with the client sending the
@@ -149,10 +154,17 @@ public class SMTPSession {
         responses = new ArrayList<SessionStatement>();
         transactions = new ArrayList<Transaction>();
         cur_trans = null;
+        arena = new StatementArena();
     }
     
     /** METHODS */
     
+    /** Retrieve the arena holding the bytes of the statements. */
+    StatementArena arena() { return arena; }
+    
+    /** Release the unused capacity of the session, once it is complete. */
+    void trim() { arena.trim(); }
+    
     /** Retrieve the commands/messages issed by the SMTP client. */
     public List<SessionStatement> getCommands() { return commands; }
     
@@ -203,6 +215,11 @@ public class SMTPSession {
      * false otherwise. */
     public boolean hasTcpRst() { return tcp_session.hasRst(); }
     
+    /** Return true if the underlying TCP connection was picked up after its
+     * opening, i.e. the beginning of the SMTP session is missing, false
+     * otherwise. Such a session never matches a "tcp:open" statement. */
+    public boolean isTcpPartial() { return tcp_session.isPartial(); }
+    
     /** Retrieve the number of TCP packets which SMTP data has been extracted
      * from. */
     public int getTCPPacketCount() { return tcp_session.size(); }
@@ -265,11 +282,13 @@ public class SMTPSession {
                     if (cur_trans != null)
                         cur_trans.lastCmd(commands.size());
                     break;
-                // break a transaction
+                // break a transaction, unless the client has closed it and
+                // only waits for the reply (e.g. a pipelining client)
                 case HELO:
                 case QUIT:
                 case EXTN:
-                    cur_trans = null;
+                    if (cur_trans != null && !cur_trans.isCmdClosed())
+                        cur_trans = null;
                     break;
                 // no effect on transaction
                 case RCPT: break;
@@ -0,0 +1,29 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * Interface for the objects following the SMTP sessions while they are
+ * parsed. The listener is called as soon as a SMTP command, a SMTP response or
+ * an IMF message is complete and has been added to its SMTP session, possibly
+ * long before the underlying TCP session is closed. When the SMTP sessions are
+ * parsed while the TCP sessions are rebuilt, the listener is called on the
+ * threads rebuilding the TCP sessions: with several partitions (see
+ * TCPSessionBuilder.setPartitionCount), it is called concurrently from every
+ * tcp-session-builder-N thread and must be thread-safe. The statements of one
+ * SMTP session are reported in order, by the thread of its partition and then,
+ * for the last ones, by the thread parsing the delivered TCP session.
+ *
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+public interface SMTPStatementListener {
+    
+    /** Called when the given statement has been added to the given SMTP
+     * session. */
+    public void statementAdded(SMTPSession session, SessionStatement statement);
+    
+}
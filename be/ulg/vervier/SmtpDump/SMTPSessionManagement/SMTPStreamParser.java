@@ -0,0 +1,483 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements an incremental parser for the Simple Mail Transfer
+ * Protocol. It follows one TCP session while it is rebuilt: each call to
+ * update parses the payload segments added to the session since the previous
+ * call and updates the SMTP session in place. The commands, responses and IMF
+ * messages are added to the SMTP session, and reported to the statement
+ * listener if any, as soon as they are complete.
+ * The payload streams of the client and of the server are split into CRLF
+ * terminated lines by a line framer, regardless of the segment boundaries, so
+ * that the commands sent at once by a pipelining client (RFC 2920) and the
+ * lines of a multi-line reply are all recognized. The lines are recognized on
+ * the payload bytes by the SMTP tokenizer, and the bytes of a statement are
+ * copied once, to the arena of the SMTP session, without being decoded.
+ * After a DATA command, the client stream is read as an IMF message up to the
+ * termination sequence <CRLF>.<CRLF>, unless the server has rejected the
+ * command: the replies are matched to the commands in order, as a pipelining
+ * client may send the next commands before the replies to the previous ones.
+ * The capture of an IMF message may be bounded: the header, up to
+ * MAX_HEADER_LENGTH, and the first bytes of the body, up to the capture limit,
+ * are held while the following bytes are only digested (length, SHA-256 and
+ * Adler-32) as they are received, without being decoded.
+ * The stages which nothing uses may be skipped or deferred (see
+ * SMTPParsePlan): the statements of an IMF message may be extracted on their
+ * first access only, the body of the messages and the text of the responses
+ * may not be held.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+import java.util.List;
+import java.util.LinkedList;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+import be.ulg.vervier.SmtpDump.TCPSessionManagement.TCPSession;
+import be.ulg.vervier.SmtpDump.Utils.ByteScanner;
+
+public class SMTPStreamParser {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The followed TCP session */
+    private TCPSession tcp_session;
+    /** The tokenizer of the SMTP commands and responses */
+    private SMTPTokenizer tokenizer;
+    /** The scanner of the IMF message headers */
+    private IMFHeaderScanner header_scanner;
+    /** The parse plan */
+    private SMTPParsePlan plan;
+    /** The SMTP session updated in place */
+    private SMTPSession smtp_session;
+    /** The arena holding the bytes of the statements of the SMTP session */
+    private StatementArena arena;
+    /** The listener of the completed statements, if any */
+    private SMTPStatementListener listener;
+    /** True if the IMF messages must be reassembled, false otherwise */
+    private boolean imf_reassemble;
+    /** The index of the next payload segment to parse */
+    private int next_segment;
+    /** The number of SMTP packets parsed so far */
+    private int smtp_packet_count;
+    /** The error which stopped the parsing, if any */
+    private SMTPParserException error;
+    /** The line framers of the client and server streams */
+    private SMTPLineFramer client, server;
+    /** The state of the client stream (COMMAND, DATA_WAIT or DATA) */
+    private int client_state;
+    /** The state of the termination sequence scan in an IMF message */
+    private int dot_state;
+    /** The number of client lines not replied yet by the server */
+    private int pending_replies;
+    /** The number of replies expected up to the reply to the last DATA
+     * command, 0 if it has been received */
+    private int data_wait;
+    /** The code of the reply to the last DATA command, -1 if unknown */
+    private int data_reply;
+    /** The code of the multi-line reply being received, -1 if none */
+    private int reply_code;
+    /** The offsets of the text of the multi-line reply being received */
+    private long reply_start, reply_end;
+    /** The client stream states */
+    private static final int COMMAND = 0;
+    private static final int DATA_WAIT = 1;
+    private static final int DATA = 2;
+    /** The termination sequence scan states: at the beginning of a line,
+     * after a dot beginning a line, after its CR, in a line, after a CR in a
+     * line, after a CR beginning a line and at the end of the message */
+    private static final int LINE_START = 0;
+    private static final int DOT = 1;
+    private static final int DOT_CR = 2;
+    private static final int MID = 3;
+    private static final int CR = 4;
+    private static final int LINE_CR = 5;
+    private static final int END = 6;
+    /** The carriage return, searched in the lines of an IMF message */
+    private static final byte CR_BYTE = '\r';
+    /** The maximum number of bytes of the body of an IMF message held, -1 if
+     * the messages are not truncated */
+    private int capture_limit;
+    /** The number of bytes of the IMF message received so far */
+    private long data_length;
+    /** The index in the IMF message where its body begins, after the first
+     * empty line, -1 if not received yet */
+    private long body_start;
+    /** The number of bytes of the IMF message not held so far */
+    private long digest_length;
+    /** The SHA-256 digest of the bytes of the IMF message not held */
+    private MessageDigest digest;
+    /** The Adler-32 checksum of the bytes of the IMF message not held */
+    private Adler32 checksum;
+    /** The maximum length of the header of an IMF message held when the
+     * capture is bounded */
+    static final int MAX_HEADER_LENGTH = 64 * 1024;
+    /** The IMF message being received */
+    private IMFMessage message;
+    /** The fragments of the IMF message being received */
+    private List<IMFMessage> messages;
+    /** The index in the reassembled message where each fragment starts */
+    private List<Integer> fragments;
+    /** The offset in the arena of the IMF message being received */
+    private int message_start;
+    /** The number of bytes of the IMF message being received held in the
+     * arena */
+    private int message_length;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new incremental SMTP parser following the given TCP session,
+     * which must hold at least one packet, and enable/disable IMF
+     * reassembling. The body of the IMF messages is held up to the given
+     * number of bytes, -1 for no limit, and the statements are parsed
+     * according to the given parse plan. The completed statements are
+     * reported to the given listener, if not null. */
+    public SMTPStreamParser(TCPSession tcp_session, boolean imf_reassemble,
+                            int capture_limit, SMTPParsePlan plan,
+                            SMTPStatementListener listener)
+            throws SMTPParserException {
+        try {
+            smtp_session = new SMTPSession(tcp_session);
+        } catch (InvalidSMTPSessionIdentifierException issie) {
+            throw new SMTPParserException("smtp-parser:" + issie.getMessage());
+        }
+        this.tcp_session = tcp_session;
+        arena = smtp_session.arena();
+        tokenizer = new SMTPTokenizer();
+        header_scanner = new IMFHeaderScanner();
+        this.imf_reassemble = imf_reassemble;
+        this.plan = plan;
+        // without its body, only the header of a message is held
+        this.capture_limit = plan.messageBody() ? capture_limit : 0;
+        this.listener = listener;
+        data_length = 0;
+        body_start = -1;
+        digest_length = 0;
+        digest = null;
+        checksum = null;
+        if (capture_limit >= 0 && plan.messageBody()) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new SMTPParserException("smtp-parser:" +
+                                              nsae.getMessage());
+            }
+            checksum = new Adler32();
+        }
+        next_segment = 0;
+        smtp_packet_count = 0;
+        error = null;
+        client = null;
+        server = null;
+        client_state = COMMAND;
+        dot_state = LINE_START;
+        pending_replies = 0;
+        data_wait = 0;
+        data_reply = -1;
+        reply_code = -1;
+        reply_start = 0;
+        reply_end = 0;
+        message = null;
+        messages = new LinkedList<IMFMessage>();
+        fragments = new LinkedList<Integer>();
+        message_start = 0;
+        message_length = 0;
+    }
+    
+    /** METHODS */
+    
+    /** Parse the payload segments added to the TCP session since the previous
+     * call. Once an error has been raised, it is raised again by every
+     * call. */
+    public void update() throws SMTPParserException {
+        if (error != null) throw error;
+        try {
+            while (next_segment < tcp_session.getSegmentCount()) {
+                int i = next_segment++;
+                int len = tcp_session.getSegmentLength(i);
+                if (len == 0) continue;
+                long end = tcp_session.getSegmentOffset(i) + len;
+                if (tcp_session.isSourceSegment(i)) {
+                    if (client == null)
+                        client = new SMTPLineFramer
+                            (tcp_session.getSegmentStream(i));
+                    parseClient(end);
+                } else {
+                    if (server == null)
+                        server = new SMTPLineFramer
+                            (tcp_session.getSegmentStream(i));
+                    parseServer(end);
+                }
+                smtp_packet_count++;
+            }
+        } catch (InvalidSessionStatementException isse) {
+            throw (error = new SMTPParserException
+                ("smtp-parser:" + isse.getMessage()));
+        } catch (SMTPParserException spe) {
+            // the arena of the session is full
+            throw (error = spe);
+        }
+    }
+    
+    /** Parse the client stream up to the given offset. */
+    private void parseClient(long end)
+            throws InvalidSessionStatementException, SMTPParserException {
+        while (client.position() < end) {
+            if (client_state == DATA_WAIT) {
+                // the client goes on after a DATA command: it sends the
+                // message unless the server is known to have rejected it
+                if (data_reply < 0 || data_reply == 354) {
+                    client_state = DATA;
+                    dot_state = LINE_START;
+                } else {
+                    client_state = COMMAND;
+                }
+            }
+            if (client_state == DATA) {
+                parseMessage(end);
+                continue;
+            }
+            if (!client.next(end)) return;
+            pending_replies++;
+            byte[] b = client.array();
+            int off = client.index(client.lineStart());
+            int len = (int)(client.lineEnd() - client.lineStart());
+            SMTPCommandType cmd_type = tokenizer.command(b, off, len);
+            if (cmd_type == null) continue;
+            SMTPCommand command = new SMTPCommand(cmd_type);
+            command.command(new ASCIISequence(arena, arena.append(b, off, len),
+                                              len));
+            smtp_session.addCommand(command);
+            notifyListener(command);
+            if (cmd_type == SMTPCommandType.DATA) {
+                client_state = DATA_WAIT;
+                data_wait = pending_replies;
+                data_reply = -1;
+            }
+        }
+    }
+    
+    /** Parse the IMF message sent by the client, from the first byte not
+     * consumed up to the given offset or to the end of the message.
+     * The message is always reassembled before extracting the different
+     * header fields. If the message must be reassembled for further
+     * processing in the system, the reassembled version of the message is
+     * added to the current SMTP session. If the message need not be
+     * reassembled, its fragmented version is added to the SMTP session.
+     * The bytes beyond the capture limit are only digested. */
+    private void parseMessage(long end)
+            throws InvalidSessionStatementException, SMTPParserException {
+        byte[] b = client.array();
+        long start = client.position();
+        long stop = start;
+        // look for the termination sequence <CRLF>.<CRLF>, and for the
+        // first empty line which begins the body
+        while (stop < end && dot_state != END) {
+            if (dot_state == MID) {
+                // in a line, only a CR may change the state
+                int i = ByteScanner.indexOf(b, client.index(stop),
+                                            client.index(end), CR_BYTE);
+                if (i < 0) {
+                    stop = end;
+                    break;
+                }
+                stop += i - client.index(stop);
+            }
+            byte c = b[client.index(stop++)];
+            switch (dot_state) {
+                case LINE_START:
+                    dot_state = (c == '.') ? DOT : (c == '\r') ? LINE_CR : MID;
+                    break;
+                case DOT:
+                    dot_state = (c == '\r') ? DOT_CR : MID;
+                    break;
+                case DOT_CR:
+                    dot_state = (c == '\n') ? END : (c == '\r') ? CR : MID;
+                    break;
+                case LINE_CR:
+                    if (c == '\n' && body_start < 0) {
+                        long offset = data_length + stop - start;
+                        // the first line cannot end the header
+                        if (offset > 2) body_start = offset;
+                    }
+                    dot_state = (c == '\n') ? LINE_START :
+                                (c == '\r') ? CR : MID;
+                    break;
+                case CR:
+                    dot_state = (c == '\n') ? LINE_START :
+                                (c == '\r') ? CR : MID;
+                    break;
+                default:
+                    dot_state = (c == '\r') ? CR : MID;
+                    break;
+            }
+        }
+        int length = (int)(stop - start);
+        int held = length;
+        if (capture_limit >= 0) {
+            long capture_end = ((body_start >= 0) ?
+                                body_start : MAX_HEADER_LENGTH) + capture_limit;
+            held = (int)Math.max(0, Math.min(length,
+                                             capture_end - data_length));
+            // once bytes were digested, none is held any more: the capture
+            // end moves forward when the header end is found past
+            // MAX_HEADER_LENGTH, but the bytes held must stay a prefix of
+            // the message and the bytes digested its suffix
+            if (digest_length > 0) held = 0;
+            if (held < length && digest != null) {
+                digest.update(b, client.index(start + held), length - held);
+                checksum.update(b, client.index(start + held), length - held);
+            }
+            digest_length += length - held;
+        }
+        data_length += length;
+        if (held > 0) {
+            // the fragments of the message are contiguous in the arena
+            message_start = (message_length == 0) ?
+                arena.append(b, client.index(start), held) :
+                arena.extend(message_start, message_length, b,
+                             client.index(start), held);
+            if (message == null)
+                message = new IMFMessage(message_length);
+            fragments.add(message_length);
+            if (!imf_reassemble) {
+                message.message(new ASCIISequence
+                    (arena, message_start + message_length, held));
+                messages.add(message);
+                smtp_session.addMessage(message);
+                notifyListener(message);
+                message = null;
+            }
+            message_length += held;
+        }
+        client.skipTo(stop);
+        if (dot_state == END) {
+            completeMessage();
+            // the message is replied as a command
+            pending_replies++;
+            client_state = COMMAND;
+        }
+    }
+    
+    /** Extract the statements of the IMF message received, once its
+     * termination sequence has been received. */
+    private void completeMessage() throws InvalidSessionStatementException {
+        if (imf_reassemble) {
+            message.message(new ASCIISequence(arena, message_start,
+                                              message_length));
+            messages.add(message);
+            smtp_session.addMessage(message);
+        }
+        // the termination sequence is <CRLF>.<CRLF>, or .<CRLF> alone for an
+        // empty message; the visible body of a truncated message ends with
+        // the bytes held
+        int term_seq_start = Math.max(0, message_length - 5);
+        if (digest_length > 0) {
+            term_seq_start = message_length;
+            if (digest != null) {
+                messages.get(messages.size() - 1).
+                    truncated(digest_length, digest.digest(),
+                              checksum.getValue());
+                checksum.reset();
+            } else {
+                messages.get(messages.size() - 1).
+                    truncated(digest_length, null, 0);
+            }
+        }
+        IMFStatementExtractor extractor = new IMFStatementExtractor
+            (arena, message_start, message_length, term_seq_start, messages,
+             fragments);
+        if (plan.imfFields()) extractor.extract(header_scanner);
+        else extractor.defer();
+        // the reassembled message is complete once its statements are
+        // extracted, or deferred
+        if (imf_reassemble) notifyListener(message);
+        data_length = 0;
+        body_start = -1;
+        digest_length = 0;
+        message_length = 0;
+        message = null;
+        messages.clear();
+        fragments.clear();
+    }
+    
+    /** Parse the server stream up to the given offset. The lines of a
+     * multi-line reply (e.g. 250-) make up one response, whose text runs from
+     * the text of its first line to the end of its last line. */
+    private void parseServer(long end)
+            throws InvalidSessionStatementException, SMTPParserException {
+        while (server.next(end)) {
+            byte[] b = server.array();
+            int off = server.index(server.lineStart());
+            int len = (int)(server.lineEnd() - server.lineStart());
+            if (!tokenizer.response(b, off, len)) {
+                // not a reply line: the pending reply is over
+                flushReply();
+                continue;
+            }
+            int code = tokenizer.code();
+            if (reply_code != code) {
+                flushReply();
+                reply_code = code;
+                reply_start = server.lineStart() + tokenizer.textStart() - off;
+            }
+            reply_end = server.lineStart() + tokenizer.textEnd() - off;
+            if (b[off + 3] != '-') flushReply();
+        }
+    }
+    
+    /** Report the reply being received, if any, as a SMTP response and match
+     * it to the oldest client line not replied yet. */
+    private void flushReply()
+            throws InvalidSessionStatementException, SMTPParserException {
+        if (reply_code < 0) return;
+        int len = plan.responseText() ? (int)(reply_end - reply_start) : 0;
+        SMTPResponse response = new SMTPResponse
+            (reply_code, new ASCIISequence
+                (arena, arena.append(server.array(), server.index(reply_start),
+                                     len), len));
+        smtp_session.addResponse(response);
+        notifyListener(response);
+        if (pending_replies > 0) pending_replies--;
+        if (data_wait > 0 && --data_wait == 0) data_reply = reply_code;
+        reply_code = -1;
+    }
+    
+    /** Report the given completed statement to the listener, if any. */
+    private void notifyListener(SessionStatement statement) {
+        if (listener != null) listener.statementAdded(smtp_session, statement);
+    }
+    
+    /** Retrieve the SMTP session updated by the parser. */
+    public SMTPSession getSession() { return smtp_session; }
+    
+    /** Retrieve the followed TCP session. */
+    public TCPSession getTCPSession() { return tcp_session; }
+    
+    /** Retrieve the number of payload segments parsed so far. */
+    public int getParsedSegmentCount() { return next_segment; }
+    
+    /** Retrieve the offset in the client stream of the first byte still
+     * needed by the parser: the bytes before may be released. */
+    public long getClientOffset() {
+        return (client != null) ? client.position() : 0;
+    }
+    
+    /** Retrieve the offset in the server stream of the first byte still
+     * needed by the parser: the bytes before may be released. */
+    public long getServerOffset() {
+        if (server == null) return 0;
+        return (reply_code >= 0) ?
+            Math.min(reply_start, server.position()) : server.position();
+    }
+    
+    /** Retrieve the number of SMTP packets parsed so far. */
+    public int getSMTPPacketCount() { return smtp_packet_count; }
+    
+}
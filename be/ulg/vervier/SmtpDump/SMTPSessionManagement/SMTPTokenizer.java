@@ -0,0 +1,237 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a tokenizer for the SMTP commands and responses,
+ * working directly on the payload bytes. The verb of a command is classified
+ * by a switch on its first 4 bytes, case-folded and packed into an int, then
+ * the rest of the command is checked byte by byte. A response is made of a
+ * 3-digit code, a separator and a text, which may span several lines in a
+ * multi-line reply (e.g. 250-).
+ * The statements accepted, and the command types, are those of the former
+ * regular expressions:
+ * - command: ^[ \t]*(verb)[ \t]*\r\n$, case insensitive, where the verb is
+ *   HELO|EHLO|HELP|VRFY|EXPN|NOOP|DATA followed by any text, MAIL[ \t]+FROM
+ *   [ \t]*: or RCPT[ \t]+TO[ \t]*: followed by any text, QUIT, RSET, STARTTLS
+ *   or AUTH[ \t]*LOGIN, the text not holding any line terminator;
+ * - response: ^([0-9]{3})[ \t-]+(.*)\r\n$, the text holding any byte.
+ * As in java.util.regex, $ also matches before a single line terminator (\r,
+ * \n or \r\n) at the end of the payload.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+import java.nio.charset.Charset;
+
+class SMTPTokenizer {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The code of the last response tokenized */
+    private int code;
+    /** The offset of the text of the last response tokenized */
+    private int text_start;
+    /** The end offset of the text of the last response tokenized */
+    private int text_end;
+    /** The buffer holding the last response tokenized */
+    private byte[] text_buffer;
+    /** The first 4 bytes of the verbs, case-folded, in network order */
+    private static final int HELO = 'h' << 24 | 'e' << 16 | 'l' << 8 | 'o';
+    private static final int EHLO = 'e' << 24 | 'h' << 16 | 'l' << 8 | 'o';
+    private static final int HELP = 'h' << 24 | 'e' << 16 | 'l' << 8 | 'p';
+    private static final int VRFY = 'v' << 24 | 'r' << 16 | 'f' << 8 | 'y';
+    private static final int EXPN = 'e' << 24 | 'x' << 16 | 'p' << 8 | 'n';
+    private static final int NOOP = 'n' << 24 | 'o' << 16 | 'o' << 8 | 'p';
+    private static final int MAIL = 'm' << 24 | 'a' << 16 | 'i' << 8 | 'l';
+    private static final int RCPT = 'r' << 24 | 'c' << 16 | 'p' << 8 | 't';
+    private static final int QUIT = 'q' << 24 | 'u' << 16 | 'i' << 8 | 't';
+    private static final int RSET = 'r' << 24 | 's' << 16 | 'e' << 8 | 't';
+    private static final int DATA = 'd' << 24 | 'a' << 16 | 't' << 8 | 'a';
+    private static final int STAR = 's' << 24 | 't' << 16 | 'a' << 8 | 'r';
+    private static final int AUTH = 'a' << 24 | 'u' << 16 | 't' << 8 | 'h';
+    /** The words following some verbs, in lower case */
+    private static final byte[] FROM = { 'f', 'r', 'o', 'm' };
+    private static final byte[] TO = { 't', 'o' };
+    private static final byte[] TTLS = { 't', 't', 'l', 's' };
+    private static final byte[] LOGIN = { 'l', 'o', 'g', 'i', 'n' };
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor. */
+    SMTPTokenizer() {
+        code = -1;
+        text_start = 0;
+        text_end = 0;
+        text_buffer = null;
+    }
+    
+    /** METHODS */
+    
+    /** Tokenize the given payload as a SMTP command. Return the command type,
+     * or null if the payload is not a SMTP command. */
+    SMTPCommandType command(byte[] b, int off, int len) {
+        int end = off + len;
+        int i = skipBlanks(b, off, end);
+        if (end - i < 4) return null;
+        int verb = (toLowerCase(b[i]) << 24) | (toLowerCase(b[i + 1]) << 16) |
+                   (toLowerCase(b[i + 2]) << 8) | toLowerCase(b[i + 3]);
+        i += 4;
+        switch (verb) {
+            // verb followed by any text
+            case HELO:
+            case EHLO:
+                return isLine(b, i, end) ? SMTPCommandType.HELO : null;
+            case HELP:
+                return isLine(b, i, end) ? SMTPCommandType.HELP : null;
+            case VRFY:
+                return isLine(b, i, end) ? SMTPCommandType.VRFY : null;
+            case EXPN:
+                return isLine(b, i, end) ? SMTPCommandType.EXPN : null;
+            case NOOP:
+                return isLine(b, i, end) ? SMTPCommandType.NOOP : null;
+            case DATA:
+                return isLine(b, i, end) ? SMTPCommandType.DATA : null;
+            // verb, blanks, word, colon followed by any text
+            case MAIL:
+                i = skipWord(b, skipBlanks(b, i, end), end, FROM, i);
+                return (i > 0 && isLine(b, i, end)) ?
+                    SMTPCommandType.MAIL : null;
+            case RCPT:
+                i = skipWord(b, skipBlanks(b, i, end), end, TO, i);
+                return (i > 0 && isLine(b, i, end)) ?
+                    SMTPCommandType.RCPT : null;
+            // verb alone
+            case QUIT:
+                return isEndOfLine(b, skipBlanks(b, i, end), end) ?
+                    SMTPCommandType.QUIT : null;
+            case RSET:
+                return isEndOfLine(b, skipBlanks(b, i, end), end) ?
+                    SMTPCommandType.RSET : null;
+            case STAR:
+                return (startsWith(b, i, end, TTLS) &&
+                        isEndOfLine(b, skipBlanks(b, i + 4, end), end)) ?
+                    SMTPCommandType.EXTN : null;
+            case AUTH:
+                i = skipBlanks(b, i, end);
+                return (startsWith(b, i, end, LOGIN) &&
+                        isEndOfLine(b, skipBlanks(b, i + 5, end), end)) ?
+                    SMTPCommandType.EXTN : null;
+            default:
+                return null;
+        }
+    }
+    
+    /** Tokenize the given payload as a SMTP response. Return true if the
+     * payload is a SMTP response, whose code and text may then be
+     * retrieved. */
+    boolean response(byte[] b, int off, int len) {
+        int end = off + len;
+        code = -1;
+        if (len < 4 || !isDigit(b[off]) || !isDigit(b[off + 1]) ||
+            !isDigit(b[off + 2])) return false;
+        int i = off + 3;
+        if (!isSeparator(b[i])) return false;
+        while (i < end && isSeparator(b[i])) i++;
+        // the text ends at the last CRLF which is followed by the end of the
+        // payload or by a single line terminator
+        int e;
+        if (len >= 2 && b[end - 2] == '\r' && b[end - 1] == '\n')
+            e = end - 2;
+        else if (len >= 3 && b[end - 3] == '\r' && b[end - 2] == '\n' &&
+                 (b[end - 1] == '\r' || b[end - 1] == '\n'))
+            e = end - 3;
+        else
+            return false;
+        if (e < i) return false;
+        code = (b[off] - '0') * 100 + (b[off + 1] - '0') * 10 +
+               (b[off + 2] - '0');
+        text_start = i;
+        text_end = e;
+        text_buffer = b;
+        return true;
+    }
+    
+    /** Retrieve the code of the last response tokenized. */
+    int code() { return code; }
+    
+    /** Retrieve the index in its buffer of the text of the last response
+     * tokenized. */
+    int textStart() { return text_start; }
+    
+    /** Retrieve the end index in its buffer of the text of the last response
+     * tokenized. */
+    int textEnd() { return text_end; }
+    
+    /** Decode the text of the last response tokenized with the given
+     * charset. */
+    String text(Charset charset) {
+        return new String(text_buffer, text_start, text_end - text_start,
+                          charset);
+    }
+    
+    /** Return true if the bytes from the given offset hold no line terminator
+     * up to a line end (see isEndOfLine). */
+    private static boolean isLine(byte[] b, int i, int end) {
+        while (i < end && b[i] != '\r' && b[i] != '\n') i++;
+        return isEndOfLine(b, i, end);
+    }
+    
+    /** Return true if the bytes from the given offset are a CRLF followed by
+     * the end of the payload or by a single line terminator (\r, \n or
+     * \r\n). */
+    private static boolean isEndOfLine(byte[] b, int i, int end) {
+        if (end - i < 2 || b[i] != '\r' || b[i + 1] != '\n') return false;
+        i += 2;
+        switch (end - i) {
+            case 0: return true;
+            case 1: return b[i] == '\r' || b[i] == '\n';
+            case 2: return b[i] == '\r' && b[i + 1] == '\n';
+            default: return false;
+        }
+    }
+    
+    /** Skip the given lower case word, after at least one blank following the
+     * verb ending at verb_end, then the blanks and the colon following it.
+     * Return the offset after the colon, -1 if there is no such word. */
+    private static int skipWord(byte[] b, int i, int end, byte[] word,
+                                int verb_end) {
+        if (i == verb_end || !startsWith(b, i, end, word)) return -1;
+        i = skipBlanks(b, i + word.length, end);
+        return (i < end && b[i] == ':') ? i + 1 : -1;
+    }
+    
+    /** Return true if the bytes from the given offset start with the given
+     * lower case word, case insensitive. */
+    private static boolean startsWith(byte[] b, int i, int end, byte[] word) {
+        if (end - i < word.length) return false;
+        for (int k = 0; k < word.length; k++)
+            if (toLowerCase(b[i + k]) != word[k]) return false;
+        return true;
+    }
+    
+    /** Retrieve the offset of the first byte which is not a blank (space or
+     * tab) from the given offset. */
+    private static int skipBlanks(byte[] b, int i, int end) {
+        while (i < end && (b[i] == ' ' || b[i] == '\t')) i++;
+        return i;
+    }
+    
+    /** Return true if the given byte is an ASCII digit. */
+    private static boolean isDigit(byte c) { return c >= '0' && c <= '9'; }
+    
+    /** Return true if the given byte separates a response code from its
+     * text. */
+    private static boolean isSeparator(byte c) {
+        return c == ' ' || c == '\t' || c == '-';
+    }
+    
+    /** Convert an ASCII upper case letter to lower case. */
+    private static int toLowerCase(byte c) {
+        return (c >= 'A' && c <= 'Z') ? c | 0x20 : c & 0xFF;
+    }
+    
+}
@@ -0,0 +1,106 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the byte arena of a SMTP session: the bytes of all
+ * the statements of the session (commands, responses and IMF messages) are
+ * appended to one buffer, each statement being an ASCII view over its bytes
+ * (see ASCIISequence). The bytes of the arena are never modified once
+ * appended, so that the views stay valid when the buffer grows.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.SMTPSessionManagement;
+
+import java.nio.charset.Charset;
+
+class StatementArena {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The bytes of the arena, valid up to its length */
+    private byte[] data;
+    /** The number of bytes of the arena */
+    private int length;
+    /** The initial capacity of an arena */
+    private static final int INITIAL_CAPACITY = 512;
+    /** The maximum capacity of an arena, the largest array size allowed by
+     * the virtual machines */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+    /** The US-ASCII charset for the decoding of the statements */
+    private static final Charset CHARSET_ASCII = Charset.forName("US-ASCII");
+    
+    /** CONSTRUCTORS */
+    
+    /** Default constructor. */
+    StatementArena() {
+        data = new byte[INITIAL_CAPACITY];
+        length = 0;
+    }
+    
+    /** METHODS */
+    
+    /** Append the given bytes to the arena. Return the offset of the bytes in
+     * the arena. */
+    int append(byte[] b, int off, int len) throws SMTPParserException {
+        ensureCapacity(len);
+        System.arraycopy(b, off, data, length, len);
+        length += len;
+        return length - len;
+    }
+    
+    /** Append the given bytes to the region of the arena beginning at the
+     * given offset and of the given length. The region is moved to the end of
+     * the arena first if other bytes have been appended after it. Return the
+     * offset of the extended region. */
+    int extend(int start, int region_length, byte[] b, int off, int len)
+            throws SMTPParserException {
+        if (start + region_length != length) {
+            ensureCapacity(region_length);
+            System.arraycopy(data, start, data, length, region_length);
+            start = length;
+            length += region_length;
+        }
+        append(b, off, len);
+        return start;
+    }
+    
+    /** Release the unused capacity of the arena, once no more bytes are
+     * appended. */
+    void trim() {
+        if (data.length == length) return;
+        byte[] t = new byte[length];
+        System.arraycopy(data, 0, t, 0, length);
+        data = t;
+    }
+    
+    /** Retrieve the buffer holding the bytes of the arena. */
+    byte[] array() { return data; }
+    
+    /** Retrieve the number of bytes of the arena. */
+    int length() { return length; }
+    
+    /** Decode the bytes of the arena at the given offset and of the given
+     * length as US-ASCII characters. */
+    String decode(int off, int len) {
+        return new String(data, off, len, CHARSET_ASCII);
+    }
+    
+    /** Grow the arena so that it can hold the given number of bytes more, up
+     * to MAX_CAPACITY bytes. */
+    private void ensureCapacity(int len) throws SMTPParserException {
+        long needed = (long)length + len;
+        if (needed <= data.length) return;
+        if (needed > MAX_CAPACITY)
+            throw new SMTPParserException("statement-arena:arena full");
+        long c = data.length;
+        while (c < needed) c = Math.min(c << 1, MAX_CAPACITY);
+        byte[] t = new byte[(int)c];
+        System.arraycopy(data, 0, t, 0, length);
+        data = t;
+    }
+    
+}
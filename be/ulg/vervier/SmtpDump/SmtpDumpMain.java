@@ -67,6 +67,9 @@ public class SmtpDumpMain {
     private boolean signature_generator_init;
     /** The list of network trace files to analyze */
     private LinkedList<String> input_files;
+    /** The maximum number of bytes of the body of an IMF message held by the
+     * SMTP parser, -1 for no limit */
+    private int capture_limit;
     /** Logger: log SMTPDUMP program error */
     private static final Logger LOGGER =
         Logger.getLogger(be.ulg.vervier.SmtpDump.SmtpDumpMain.class.getName());
@@ -99,6 +102,7 @@ public class SmtpDumpMain {
         signature_generator_init = false;
         tcp_sessions = new ArrayBlockingQueue<TCPSession>(5000);
         input_files = new LinkedList<String>();
+        capture_limit = -1;
         match_count = 0;
         last_print_length = 0;
     }
@@ -111,9 +115,156 @@ public class SmtpDumpMain {
         tcp_builder_init = true;
     }
     
+    /** Set the packet filter expression of the TCP session builder. */
+    public void setPacketFilter(String expression) {
+        if (!tcp_builder_init) return;
+        try {
+            builder.setPacketFilter(expression);
+        } catch (TCPSessionBuilderException tsbe) {
+            System.out.println("smtpdump:" + tsbe.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /** Set the number of partitions of a large capture file decoded and
+     * rebuilt in parallel by the TCP session builder. */
+    public void setPartitionCount(String count) {
+        if (!tcp_builder_init) return;
+        try {
+            builder.setPartitionCount(Integer.parseInt(count));
+        } catch (NumberFormatException nfe) {
+            System.out.println("smtpdump:invalid partition count \"" + count +
+                               "\"");
+            System.exit(1);
+        }
+    }
+    
+    /** Set the maximum number of opening TCP sessions of the TCP session
+     * builder, given as "<count>" or "<count>,compact" to keep compact
+     * handshake records. */
+    public void setSynSessions(String value) {
+        if (!tcp_builder_init) return;
+        String[] fields = value.split(",");
+        try {
+            builder.setSynSessions(Integer.parseInt(fields[0]),
+                                   fields.length > 1 &&
+                                   fields[1].equals("compact"));
+        } catch (NumberFormatException nfe) {
+            System.out.println("smtpdump:invalid opening sessions count \"" +
+                               value + "\"");
+            System.exit(1);
+        }
+    }
+    
+    /** Set the idle timeouts of the TCP sessions of the TCP session builder,
+     * given as a list of "<state>=<seconds>" separated by commas. */
+    public void setIdleTimeouts(String value) {
+        if (!tcp_builder_init) return;
+        try {
+            for (String timeout: value.split(",")) {
+                String[] fields = timeout.split("=");
+                builder.setIdleTimeout(TCPState.valueOf(fields[0].trim().
+                                                        toUpperCase()),
+                                       Long.parseLong(fields[1].trim()) *
+                                       1000);
+            }
+        } catch (RuntimeException re) {
+            System.out.println("smtpdump:invalid idle timeouts \"" + value +
+                               "\"");
+            System.exit(1);
+        }
+    }
+    
+    /** Set the policy applied to a hole in a TCP flow when the out of order
+     * bytes buffered exceed a limit, given as "<policy>" or
+     * "<policy>,<direction-kbytes>[,<total-kbytes>]", the policy being "skip"
+     * or "drop". The limits not given are left unchanged. */
+    public void setReassemblyLimits(String value) {
+        if (!tcp_builder_init) return;
+        String[] fields = value.split(",");
+        try {
+            TCPHolePolicy policy;
+            if (fields[0].trim().equalsIgnoreCase("skip"))
+                policy = TCPHolePolicy.SKIP_HOLE;
+            else if (fields[0].trim().equalsIgnoreCase("drop"))
+                policy = TCPHolePolicy.DROP_SEGMENT;
+            else
+                throw new NumberFormatException();
+            int direction_bytes =
+                TCPSessionBuilder.getReassemblyDirectionLimit();
+            long global_bytes = TCPSessionBuilder.getReassemblyGlobalLimit();
+            if (fields.length > 1) {
+                int kbytes = Integer.parseInt(fields[1].trim());
+                if (kbytes < 0 || kbytes > Integer.MAX_VALUE / 1024)
+                    throw new NumberFormatException();
+                direction_bytes = kbytes * 1024;
+            }
+            if (fields.length > 2) {
+                long kbytes = Long.parseLong(fields[2].trim());
+                if (kbytes < 0 || kbytes > Long.MAX_VALUE / 1024)
+                    throw new NumberFormatException();
+                global_bytes = kbytes * 1024;
+            }
+            if (fields.length > 3) throw new NumberFormatException();
+            TCPSessionBuilder.setReassemblyLimits(direction_bytes,
+                                                  global_bytes, policy);
+        } catch (NumberFormatException nfe) {
+            System.out.println("smtpdump:invalid reassembly limits \"" +
+                               value + "\"");
+            System.exit(1);
+        }
+    }
+    
+    /** Set whether the TCP session builder picks up the TCP sessions whose
+     * handshake has not been captured ("true" or "false", an empty value
+     * standing for "true"). */
+    public void setMidStreamPickup(String value) {
+        if (!tcp_builder_init) return;
+        builder.setMidStreamPickup(value.trim().isEmpty() ||
+                                   Boolean.parseBoolean(value.trim()));
+    }
+    
+    /** Enable the classification of the TCP sessions from the first bytes of
+     * their payload, given the list of the SMTP ports separated by commas,
+     * whose sessions are always kept (possibly empty). */
+    public void setFlowClassification(String value) {
+        if (!tcp_builder_init) return;
+        String[] fields = value.trim().isEmpty() ? new String[0] :
+                                                   value.split(",");
+        int[] ports = new int[fields.length];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                ports[i] = Integer.parseInt(fields[i].trim());
+                if (ports[i] < 0 || ports[i] > 65535)
+                    throw new NumberFormatException();
+            }
+        } catch (NumberFormatException nfe) {
+            System.out.println("smtpdump:invalid SMTP ports \"" + value +
+                               "\"");
+            System.exit(1);
+        }
+        builder.setFlowClassification(true, ports);
+    }
+    
+    /** Set the maximum size of the body of an IMF message held by the SMTP
+     * parser, given in KB. */
+    public void setCaptureLimit(String value) {
+        try {
+            int kbytes = Integer.parseInt(value);
+            if (kbytes < 0 || kbytes > Integer.MAX_VALUE / 1024)
+                throw new NumberFormatException();
+            capture_limit = kbytes * 1024;
+        } catch (NumberFormatException nfe) {
+            System.out.println("smtpdump:invalid capture limit \"" + value +
+                               "\"");
+            System.exit(1);
+        }
+    }
+    
     /** Initialize the SMTP parser. */
     public void initSMTPParser(boolean imf_reassemble) {
         parser = new SMTPParser(imf_reassemble);
+        parser.setCaptureLimit(capture_limit);
         smtp_parser_init = true;
     }
     
@@ -174,14 +325,40 @@ public class SmtpDumpMain {
         signature_generator_init = true;
     }
 
+    /** Set the parse plan of the SMTP parser: the parsing stages which neither
+     * the signature matcher nor the signature generator use are skipped or
+     * deferred. */
+    public void initParsePlan() {
+        if (!(smtp_parser_init && signature_generator_init)) return;
+        SMTPParsePlan plan = new SMTPParsePlan();
+        // the IMF fields are only used by the session fingerprints of the
+        // signature generator, which extract them on first access
+        plan.imfFields(false);
+        // the text of the responses is never matched
+        plan.responseText(false);
+        // the signature statements, "smtp:" and "imf:" alike, are matched
+        // against the commands and the messages of a session
+        plan.messageBody(sig_matcher.getSignatureCount() > 0 ||
+                         sig_generator.isEnabled());
+        parser.setParsePlan(plan);
+    }
+    
     /** Launch SMTP traffic analysis. */
     public void analyzeSMTPTraffic() {
         if (!(tcp_builder_init && smtp_parser_init && sig_matcher_init &&
             result_generator_init && signature_generator_init))
             return;
         printStatusHeader();
-        // parse the specified network data resource
-        builder.setResourceIdentifier(input_files.pollFirst());
+        // parse the specified network data resources as a single stream: their
+        // packets are merged by capture time and the TCP sessions spanning
+        // several resources are rebuilt as a whole
+        builder.setResourceIdentifiers(input_files);
+        input_files.clear();
+        // the SMTP payload is parsed while the TCP sessions are rebuilt, so
+        // that it is not buffered until they are closed; the signatures are
+        // still matched once a TCP session is delivered, no statement
+        // listener being set on the parser
+        builder.setSessionListener(parser);
         new Thread(builder).start();
         try {
             TCPSession tcp_session = null;
@@ -189,17 +366,8 @@ public class SmtpDumpMain {
             MatchingSMTPSession m_session = null;
             while (true) {
                 tcp_session = tcp_sessions.take();
-                if (tcp_session != null && tcp_session.isEmpty()) {
-                    if (input_files.peekFirst() == null) {
-                        break;
-                    } else {
-                        builder.setResourceIdentifier(input_files.pollFirst());
-                        new Thread(builder).start();
-                        tcp_session = null;
-                        smtp_session = null;
-                        m_session = null;
-                    }
-                }
+                // an empty TCP session marks the end of the last resource
+                if (tcp_session != null && tcp_session.isEmpty()) break;
                 // extract the SMTP session from the TCP connection
                 if (tcp_session != null)
                     smtp_session = parser.parse(tcp_session);
@@ -211,7 +379,9 @@ public class SmtpDumpMain {
                     // write information in the database
                     result_generator.addSession(m_session);
                 } else {					// no match
-                    if (smtp_session != null) {
+                    // a partial SMTP session lacks its beginning and is not
+                    // used to generate new signatures
+                    if (smtp_session != null && !smtp_session.isTcpPartial()) {
 						// use the SMTP session to generate new signatures
                         sig_generator.addSampleSession(smtp_session);
                         sig_generator.generateSignatures();
@@ -314,11 +484,34 @@ public class SmtpDumpMain {
     public static void main(String[] arg) {
         SmtpDumpMain smtpdump = new SmtpDumpMain();
         smtpdump.printWelcome();
-        // retrieve the pcap files list
-        for (int i = 5; i < arg.length; i++)
-            smtpdump.addTraceFile(arg[i]);
         // init modules
         smtpdump.initTCPBuilder();
+        // retrieve the pcap files list, the packet filter ("f:" marker), the
+        // number of partitions ("t:" marker), the maximum number of opening
+        // TCP sessions ("s:" marker), the idle timeouts ("d:" marker), the
+        // reassembly limits ("h:" marker), the mid-stream pickup ("m:"
+        // marker), the IMF message capture limit ("c:" marker) and the flow
+        // classification with its SMTP ports ("e:" marker)
+        for (int i = 5; i < arg.length; i++) {
+            if (arg[i].startsWith("f:"))
+                smtpdump.setPacketFilter(arg[i].substring(2));
+            else if (arg[i].startsWith("t:"))
+                smtpdump.setPartitionCount(arg[i].substring(2));
+            else if (arg[i].startsWith("s:"))
+                smtpdump.setSynSessions(arg[i].substring(2));
+            else if (arg[i].startsWith("d:"))
+                smtpdump.setIdleTimeouts(arg[i].substring(2));
+            else if (arg[i].startsWith("h:"))
+                smtpdump.setReassemblyLimits(arg[i].substring(2));
+            else if (arg[i].startsWith("m:"))
+                smtpdump.setMidStreamPickup(arg[i].substring(2));
+            else if (arg[i].startsWith("c:"))
+                smtpdump.setCaptureLimit(arg[i].substring(2));
+            else if (arg[i].startsWith("e:"))
+                smtpdump.setFlowClassification(arg[i].substring(2));
+            else
+                smtpdump.addTraceFile(arg[i]);
+        }
         smtpdump.initSMTPParser
 			(arg[0] != null && arg[0].equals("true") ? true : false);
         smtpdump.initSignatureMatcher
@@ -328,6 +521,7 @@ public class SmtpDumpMain {
         smtpdump.initSignatureGenerator
 			(arg[3] != null && !arg[3].equals(".") ? arg[3] : null,
 			 arg[4] != null && !arg[4].equals(".") ? arg[4] : null);
+        smtpdump.initParsePlan();
 		// start the analysis and detection process
         smtpdump.analyzeSMTPTraffic();
     }
@@ -0,0 +1,182 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class represents the key of a TCP flow packed into primitive longs.
+ * The two endpoints <ip, port> of the flow are normalized (the lowest one
+ * first), so that both directions of a flow have the same key. An IPv4 key
+ * takes 96 bits in 2 words:
+ * - word 0: the IPv4 address of the first and second endpoints;
+ * - word 1: the ports of the first and second endpoints.
+ * An IPv6 key takes 5 words: the IPv6 addresses of both endpoints in words 0
+ * to 3 and their ports in word 4.
+ * A key can be refilled from each packet, so that looking a flow up allocates
+ * nothing.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import jpcap.packet.TCPPacket;
+
+public class FlowKey {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The key words */
+    private long[] words;
+    /** The number of words used by the key */
+    private int length;
+    /** True if the source of the packet the key was filled with is the second
+     * endpoint */
+    private boolean reversed;
+    /** The number of words of an IPv4 key */
+    static final int IPV4_LENGTH = 2;
+    /** The number of words of an IPv6 key */
+    static final int IPV6_LENGTH = 5;
+    /** The seeds generator */
+    private static final SecureRandom SEEDS = new SecureRandom();
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new empty flow key. */
+    public FlowKey() {
+        words = new long[IPV6_LENGTH];
+        length = 0;
+        reversed = false;
+    }
+    
+    /** METHODS */
+    
+    /** Fill the key with the flow of the given TCP packet. Return false if
+     * the addresses of the packet are not both IPv4 or both IPv6. */
+    public boolean set(TCPPacket p) {
+        InetAddress a = p.src_ip;
+        InetAddress b = p.dst_ip;
+        int a_port = p.src_port & 0xFFFF;
+        int b_port = p.dst_port & 0xFFFF;
+        if (a instanceof Inet4Address && b instanceof Inet4Address) {
+            // the hashcode of an IPv4 address is the address itself
+            long a_ip = a.hashCode() & 0xFFFFFFFFL;
+            long b_ip = b.hashCode() & 0xFFFFFFFFL;
+            reversed = a_ip > b_ip || (a_ip == b_ip && a_port > b_port);
+            if (reversed) {
+                long t = a_ip; a_ip = b_ip; b_ip = t;
+                int u = a_port; a_port = b_port; b_port = u;
+            }
+            words[0] = (a_ip << 32) | b_ip;
+            words[1] = ((long)a_port << 16) | b_port;
+            length = IPV4_LENGTH;
+            return true;
+        }
+        byte[] a_addr = a.getAddress();
+        byte[] b_addr = b.getAddress();
+        if (a_addr.length != 16 || b_addr.length != 16) {
+            length = 0;
+            return false;
+        }
+        long a_hi = getLong(a_addr, 0), a_lo = getLong(a_addr, 8);
+        long b_hi = getLong(b_addr, 0), b_lo = getLong(b_addr, 8);
+        int c = compareUnsigned(a_hi, b_hi);
+        if (c == 0) c = compareUnsigned(a_lo, b_lo);
+        reversed = c > 0 || (c == 0 && a_port > b_port);
+        if (reversed) {
+            words[0] = b_hi; words[1] = b_lo;
+            words[2] = a_hi; words[3] = a_lo;
+            words[4] = ((long)b_port << 16) | a_port;
+        } else {
+            words[0] = a_hi; words[1] = a_lo;
+            words[2] = b_hi; words[3] = b_lo;
+            words[4] = ((long)a_port << 16) | b_port;
+        }
+        length = IPV6_LENGTH;
+        return true;
+    }
+    
+    /** Retrieve the number of words of the key. */
+    public int length() { return length; }
+    
+    /** Retrieve the given word of the key. */
+    public long word(int i) { return words[i]; }
+    
+    /** Return true if the source of the packet the key was last filled with
+     * is the second endpoint of the flow. */
+    public boolean isReversed() { return reversed; }
+    
+    /** Return true if the key is an IPv6 flow key. */
+    public boolean isIPv6() { return length == IPV6_LENGTH; }
+    
+    /** Retrieve a copy of the key. */
+    public FlowKey copy() {
+        FlowKey k = new FlowKey();
+        System.arraycopy(words, 0, k.words, 0, length);
+        k.length = length;
+        k.reversed = reversed;
+        return k;
+    }
+    
+    /** Compute the hash of the key with the given seed. */
+    public long hash(long seed) {
+        long h = seed ^ length;
+        for (int i = 0; i < length; i++)
+            h = mix(h ^ words[i]);
+        return h;
+    }
+    
+    /** Compute the hashcode of the key. */
+    public int hashCode() {
+        long h = hash(0);
+        return (int)(h ^ (h >>> 32));
+    }
+    
+    /** Return true if the given object is a flow key with the same words. */
+    public boolean equals(Object o) {
+        if (!(o instanceof FlowKey)) return false;
+        FlowKey k = (FlowKey)o;
+        if (k.length != length) return false;
+        for (int i = 0; i < length; i++)
+            if (k.words[i] != words[i]) return false;
+        return true;
+    }
+    
+    /** Return the String representation of the key. */
+    public String toString() {
+        StringBuilder sb = new StringBuilder(100);
+        for (int i = 0; i < length; i++)
+            sb.append((i == 0) ? "" : ":").append(Long.toHexString(words[i]));
+        return sb.toString();
+    }
+    
+    /** Generate a random hash seed. */
+    static long newSeed() {
+        return SEEDS.nextLong();
+    }
+    
+    /** Finalization mix of SplitMix64. */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    /** Read a big-endian long from the given bytes. */
+    private static long getLong(byte[] b, int i) {
+        long v = 0;
+        for (int j = i; j < i + 8; j++) v = (v << 8) | (b[j] & 0xFF);
+        return v;
+    }
+    
+    /** Compare two longs as unsigned values. */
+    private static int compareUnsigned(long x, long y) {
+        x += Long.MIN_VALUE;
+        y += Long.MIN_VALUE;
+        return (x < y) ? -1 : ((x == y) ? 0 : 1);
+    }
+    
+}
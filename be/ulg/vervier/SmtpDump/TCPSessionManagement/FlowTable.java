@@ -0,0 +1,237 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements a table mapping flow keys to values. IPv4 and IPv6
+ * keys are stored in two open-addressing banks, each one holding the key words
+ * in a single array of longs. Keys are located by linear probing from a
+ * seeded hash of their words, the seed being drawn at random for each table
+ * so that the slots of chosen traffic cannot be predicted. Removed slots are
+ * filled by shifting back the following keys of the probe sequence. Looking a
+ * key up allocates nothing; the key words are copied on insertion.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+import java.util.ArrayList;
+
+public class FlowTable<V> {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The bank of IPv4 keys */
+    private FlowBank ipv4;
+    /** The bank of IPv6 keys */
+    private FlowBank ipv6;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new flow table with the given initial capacity. */
+    public FlowTable(int capacity) {
+        long seed = FlowKey.newSeed();
+        ipv4 = new FlowBank(FlowKey.IPV4_LENGTH, capacity, seed);
+        ipv6 = new FlowBank(FlowKey.IPV6_LENGTH, 16, seed);
+    }
+    
+    /** METHODS */
+    
+    /** Retrieve the value mapped to the given key, null if there is none. */
+    @SuppressWarnings("unchecked")
+    public V get(FlowKey key) {
+        FlowBank b = bank(key);
+        if (b == null) return null;
+        int i = b.find(key);
+        return (i < 0) ? null : (V)b.values[i];
+    }
+    
+    /** Map the given key to the given non null value. Return the value
+     * previously mapped to the key, null if there was none. */
+    @SuppressWarnings("unchecked")
+    public V put(FlowKey key, V value) {
+        FlowBank b = bank(key);
+        if (b == null) return null;
+        int i = b.find(key);
+        if (i >= 0) {
+            V old = (V)b.values[i];
+            b.values[i] = value;
+            return old;
+        }
+        b.insert(~i, key, value);
+        return null;
+    }
+    
+    /** Remove the mapping of the given key. Return the value which was mapped
+     * to the key, null if there was none. */
+    @SuppressWarnings("unchecked")
+    public V remove(FlowKey key) {
+        FlowBank b = bank(key);
+        if (b == null) return null;
+        int i = b.find(key);
+        if (i < 0) return null;
+        V old = (V)b.values[i];
+        b.delete(i);
+        return old;
+    }
+    
+    /** Retrieve the number of mappings. */
+    public int size() { return ipv4.size + ipv6.size; }
+    
+    /** Return true if the table holds no mapping. */
+    public boolean isEmpty() { return size() == 0; }
+    
+    /** Retrieve the values of the table. */
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> values() {
+        ArrayList<V> l = new ArrayList<V>(size());
+        for (Object v: ipv4.values) if (v != null) l.add((V)v);
+        for (Object v: ipv6.values) if (v != null) l.add((V)v);
+        return l;
+    }
+    
+    /** Remove every mapping. */
+    public void clear() {
+        ipv4.clear();
+        ipv6.clear();
+    }
+    
+    /** Retrieve the bank of the given key, null if the key is empty. */
+    private FlowBank bank(FlowKey key) {
+        if (key.length() == FlowKey.IPV4_LENGTH) return ipv4;
+        if (key.length() == FlowKey.IPV6_LENGTH) return ipv6;
+        return null;
+    }
+    
+}
+
+/**
+ * An open-addressing bank of flow keys of the same length.
+ */
+class FlowBank {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The number of words of a key */
+    private int width;
+    /** The key words, width words per slot */
+    private long[] keys;
+    /** The values, null for an empty slot */
+    Object[] values;
+    /** The slot index mask (the capacity is a power of 2) */
+    private int mask;
+    /** The number of used slots */
+    int size;
+    /** The hash seed */
+    private long seed;
+    /** The maximum number of used slots per 4 slots */
+    private static final int LOAD = 3;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new bank of keys of the given width. */
+    FlowBank(int width, int capacity, long seed) {
+        this.width = width;
+        this.seed = seed;
+        int c = 16;
+        while (c * LOAD / 4 < capacity) c <<= 1;
+        allocate(c);
+    }
+    
+    /** METHODS */
+    
+    /** Retrieve the slot of the given key, or the bitwise complement of the
+     * empty slot where it would be inserted. */
+    int find(FlowKey key) {
+        int i = (int)key.hash(seed) & mask;
+        while (values[i] != null) {
+            if (matches(i, key)) return i;
+            i = (i + 1) & mask;
+        }
+        return ~i;
+    }
+    
+    /** Insert the given key and value into the given empty slot. */
+    void insert(int i, FlowKey key, Object value) {
+        if ((size + 1) * 4 > values.length * LOAD) {
+            resize(values.length << 1);
+            i = ~find(key);
+        }
+        for (int j = 0; j < width; j++) keys[i * width + j] = key.word(j);
+        values[i] = value;
+        size++;
+    }
+    
+    /** Remove the mapping of the given slot, shifting back the following keys
+     * of the probe sequence. */
+    void delete(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) break;
+            int home = (int)slotHash(j) & mask;
+            // the key in slot j may fill slot i if its home slot is not in the
+            // cyclic range (i, j]
+            if ((j > i) ? (home <= i || home > j) : (home <= i && home > j)) {
+                System.arraycopy(keys, j * width, keys, i * width, width);
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = null;
+        size--;
+    }
+    
+    /** Remove every mapping. */
+    void clear() {
+        java.util.Arrays.fill(values, null);
+        size = 0;
+    }
+    
+    /** Return true if the key of the given slot has the words of the given
+     * key. */
+    private boolean matches(int i, FlowKey key) {
+        int o = i * width;
+        for (int j = 0; j < width; j++)
+            if (keys[o + j] != key.word(j)) return false;
+        return true;
+    }
+    
+    /** Compute the hash of the key of the given slot, as FlowKey.hash. */
+    private long slotHash(int i) {
+        long h = seed ^ width;
+        for (int j = i * width; j < (i + 1) * width; j++)
+            h = FlowKey.mix(h ^ keys[j]);
+        return h;
+    }
+    
+    /** Allocate empty slots. */
+    private void allocate(int capacity) {
+        keys = new long[capacity * width];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+    
+    /** Move every mapping to a larger array of slots. */
+    private void resize(int capacity) {
+        long[] old_keys = keys;
+        Object[] old_values = values;
+        allocate(capacity);
+        for (int i = 0; i < old_values.length; i++) {
+            if (old_values[i] == null) continue;
+            // locate the slot of the old key with the same hash as slotHash
+            long h = seed ^ width;
+            for (int j = i * width; j < (i + 1) * width; j++)
+                h = FlowKey.mix(h ^ old_keys[j]);
+            int k = (int)h & mask;
+            while (values[k] != null) k = (k + 1) & mask;
+            System.arraycopy(old_keys, i * width, keys, k * width, width);
+            values[k] = old_values[i];
+            size++;
+        }
+    }
+    
+}
@@ -0,0 +1,153 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements an opening TCP session, i.e. an entry of the SYN
+ * table. Until a TCP session is built, the entry keeps a
+ * compact record of the SYN segment which opened the flow and of the SYN/ACK
+ * segment answering it, each one packed into SEGMENT_WORDS longs:
+ * - word 0: the sequence number and the acknowledgement number;
+ * - word 1: the capture time (in sec);
+ * - word 2: the capture time (in usec), the window and the flags;
+ * - word 3: the set of TCP option kinds (see TCPEntity.optionKinds).
+ * The addresses and ports are not recorded: they are those of the flow key, the
+ * direction of each segment being given by the REVERSED flag.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+import jpcap.packet.TCPPacket;
+
+class SynEntry {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The flow key */
+    FlowKey key;
+    /** The previous (older) entry */
+    SynEntry prev;
+    /** The next (newer) entry */
+    SynEntry next;
+    /** The TCP session, null as long as the compact record is kept */
+    TCPSession session;
+    /** The capture time of the first segment of the flow (in msec) */
+    long start_time;
+    /** The recorded handshake segments */
+    private long[] segments;
+    /** The number of recorded handshake segments */
+    private int count;
+    /** The number of words of a recorded segment */
+    private static final int SEGMENT_WORDS = 4;
+    /** Segment flags */
+    private static final int SYN = 0x01;
+    private static final int ACK = 0x02;
+    private static final int PSH = 0x04;
+    private static final int URG = 0x08;
+    /** Segment flag: the segment was sent by the second endpoint of the key */
+    private static final int REVERSED = 0x80;
+    /** The empty payload of a rebuilt segment */
+    private static final byte[] NO_DATA = new byte[0];
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new empty entry for the given flow. */
+    SynEntry(FlowKey key) {
+        this.key = key;
+        prev = null;
+        next = null;
+        session = null;
+        start_time = 0;
+        segments = null;
+        count = 0;
+    }
+    
+    /** METHODS */
+    
+    /** Record the given handshake segment in the compact record. Return false
+     * if the segment does not fit in the record, i.e. the TCP session must be
+     * built. A retransmitted SYN or SYN/ACK is ignored, as the TCP session
+     * drops a segment behind the expected sequence number. */
+    boolean record(TCPPacket p, boolean reversed) {
+        if (session != null || !p.syn || p.fin || p.rst ||
+            (p.data != null && p.data.length > 0)) return false;
+        for (int i = 0; i < count; i++)
+            if (isReversed(i) == reversed && sequence(i) == p.sequence)
+                return true;
+        // the first segment opens the flow, the second one must answer it
+        if (count == 1 &&
+            (!p.ack || isReversed(0) == reversed ||
+             p.ack_num != ((sequence(0) + 1) & 0xFFFFFFFFL))) return false;
+        if (count == 2) return false;
+        if (segments == null || segments.length < (count + 1) * SEGMENT_WORDS) {
+            long[] t = new long[(count + 1) * SEGMENT_WORDS];
+            if (segments != null)
+                System.arraycopy(segments, 0, t, 0, segments.length);
+            segments = t;
+        }
+        int flags = SYN | (p.ack ? ACK : 0) | (p.psh ? PSH : 0) |
+                    (p.urg ? URG : 0) | (reversed ? REVERSED : 0);
+        int w = count * SEGMENT_WORDS;
+        segments[w] = (p.sequence << 32) | (p.ack_num & 0xFFFFFFFFL);
+        segments[w + 1] = p.sec;
+        segments[w + 2] = (p.usec << 32) | ((long)(p.window & 0xFFFF) << 16) |
+                          flags;
+        segments[w + 3] = TCPEntity.optionKinds(p.option);
+        count++;
+        return true;
+    }
+    
+    /** Build the TCP session from the compact record. The given segment of
+     * the flow, sent in the given direction, provides the addresses. */
+    TCPSession open(TCPPacket p, boolean reversed) {
+        session = new TCPSession();
+        for (int i = 0; i < count; i++)
+            session.addPacket(segment(i, p, isReversed(i) == reversed));
+        segments = null;
+        count = 0;
+        return session;
+    }
+    
+    /** Rebuild the given recorded segment. The segment has the direction of
+     * the given segment of the flow if same_direction is true. */
+    private TCPPacket segment(int i, TCPPacket p, boolean same_direction) {
+        int w = i * SEGMENT_WORDS;
+        int flags = (int)segments[w + 2] & 0xFF;
+        TCPPacket s = new TCPPacket(same_direction ? p.src_port : p.dst_port,
+                                    same_direction ? p.dst_port : p.src_port,
+                                    sequence(i),
+                                    segments[w] & 0xFFFFFFFFL,
+                                    (flags & URG) != 0,
+                                    (flags & ACK) != 0,
+                                    (flags & PSH) != 0,
+                                    false,
+                                    true,
+                                    false,
+                                    false,
+                                    false,
+                                    (int)(segments[w + 2] >>> 16) & 0xFFFF,
+                                    0);
+        s.src_ip = same_direction ? p.src_ip : p.dst_ip;
+        s.dst_ip = same_direction ? p.dst_ip : p.src_ip;
+        s.option = TCPEntity.optionField(segments[w + 3]);
+        s.data = NO_DATA;
+        s.sec = segments[w + 1];
+        s.usec = segments[w + 2] >>> 32;
+        return s;
+    }
+    
+    /** Retrieve the sequence number of the given recorded segment. */
+    private long sequence(int i) {
+        return segments[i * SEGMENT_WORDS] >>> 32;
+    }
+    
+    /** Return true if the given recorded segment was sent by the second
+     * endpoint of the key. */
+    private boolean isReversed(int i) {
+        return (segments[i * SEGMENT_WORDS + 2] & REVERSED) != 0;
+    }
+    
+}
@@ -0,0 +1,99 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the table of the opening TCP sessions, i.e. 3-way
+ * handshake not complete. The entries are indexed by flow key and linked in
+ * creation order, so that an entry is inserted, promoted to the opened
+ * sessions or evicted (the oldest one first) in constant time.
+ * An entry may hold a compact record of the handshake segments instead of a
+ * TCP session, the session being built from the record when the handshake
+ * goes on (see SynEntry).
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+class SynTable {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The entries indexed by flow key */
+    private FlowTable<SynEntry> index;
+    /** The oldest entry */
+    private SynEntry head;
+    /** The newest entry */
+    private SynEntry tail;
+    /** The maximum number of entries */
+    private int capacity;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new table holding at most the given number of entries. */
+    SynTable(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        index = new FlowTable<SynEntry>(this.capacity);
+        head = null;
+        tail = null;
+    }
+    
+    /** METHODS */
+    
+    /** Retrieve the entry of the given flow, null if there is none. */
+    SynEntry get(FlowKey key) { return index.get(key); }
+    
+    /** Add a new empty entry for the given flow, which must not be in the
+     * table, opened at the given capture time (in msec), as the newest
+     * entry. */
+    SynEntry add(FlowKey key, long start_time) {
+        SynEntry e = new SynEntry(key.copy());
+        e.start_time = start_time;
+        index.put(e.key, e);
+        e.prev = tail;
+        if (tail != null) tail.next = e;
+        else head = e;
+        tail = e;
+        return e;
+    }
+    
+    /** Remove the given entry from the table. */
+    void remove(SynEntry e) {
+        index.remove(e.key);
+        if (e.prev != null) e.prev.next = e.next;
+        else head = e.next;
+        if (e.next != null) e.next.prev = e.prev;
+        else tail = e.prev;
+        e.prev = null;
+        e.next = null;
+    }
+    
+    /** Retrieve the oldest entry, null if the table is empty. */
+    SynEntry oldest() { return head; }
+    
+    /** Remove and return the oldest entry, null if the table is empty. */
+    SynEntry evict() {
+        SynEntry e = head;
+        if (e != null) remove(e);
+        return e;
+    }
+    
+    /** Return true if the table holds the maximum number of entries. */
+    boolean isFull() { return index.size() >= capacity; }
+    
+    /** Retrieve the number of entries. */
+    int size() { return index.size(); }
+    
+    /** Retrieve the maximum number of entries. */
+    int capacity() { return capacity; }
+    
+    /** Remove every entry. */
+    void clear() {
+        index.clear();
+        head = null;
+        tail = null;
+    }
+    
+}
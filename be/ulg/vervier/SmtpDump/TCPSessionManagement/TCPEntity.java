@@ -16,9 +16,6 @@ import java.net.InetAddress;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
-import java.util.ArrayList;
-import jpcap.packet.TCPPacket;
 
 class TCPEntity {
     
@@ -60,8 +57,14 @@ class TCPEntity {
     HashSet<String> options;
     /** A data structure mapping TCP options kind field and their name */
     private static HashMap<Byte, String> opt_def;
-    /** The packet reassembling buffer */
-    List<TCPPacket> p_buffer;
+    /** The out of order segments sent by the entity */
+    TCPReassemblyBuffer p_buffer;
+    /** The number of bytes sent by the entity given up as lost in holes */
+    long lost_bytes;
+    /** The in-order payload bytes sent by the entity */
+    TCPStream stream;
+    /** The TCP state of the entity, as seen from the network */
+    TCPState state;
     
     static {
         opt_def = new HashMap<Byte, String>();
@@ -116,7 +119,10 @@ class TCPEntity {
         start_seq = 0;
         packet_count = 0;
         options = new HashSet<String>();
-        p_buffer = new ArrayList<TCPPacket>();
+        p_buffer = new TCPReassemblyBuffer();
+        lost_bytes = 0;
+        stream = new TCPStream();
+        state = TCPState.NONE;
     }
     
     /** METHODS */
@@ -209,8 +215,14 @@ class TCPEntity {
     /** Set the number of packets sent by this entity. */
     void packetCount(int packet_count) { this.packet_count = packet_count; }
     
-    /** Retrieve the packet buffer of this entity. */
-    List<TCPPacket> getPacketBuffer() { return p_buffer; }
+    /** Retrieve the out of order segments buffer of this entity. */
+    TCPReassemblyBuffer getPacketBuffer() { return p_buffer; }
+    
+    /** Retrieve the TCP state of this entity. */
+    TCPState state() { return state; }
+    
+    /** Retrieve the payload stream sent by this entity. */
+    TCPStream getStream() { return stream; }
     
     /** Retrieve the list of TCP options */
     Collection<String> options() { return options; }
@@ -227,6 +239,45 @@ class TCPEntity {
         }
     }
     
+    /** Retrieve the set of known TCP option kinds found in the given TCP
+     * option field, one bit per kind (see optionBit). */
+    static long optionKinds(byte[] opt) {
+        long kinds = 0;
+        if (opt == null) return kinds;
+        for (int i = 0; i < opt.length; i++) {
+            if (opt_def.containsKey(opt[i]) && i < opt.length - 1) {
+                kinds |= 1L << optionBit(opt[i]);
+                i = (i + opt[i + 1] - 1 >= i) ? i + opt[i + 1] - 1 : i;
+            }
+        }
+        return kinds;
+    }
+    
+    /** Build a TCP option field holding the given set of TCP option kinds,
+     * each one with an empty value. */
+    static byte[] optionField(long kinds) {
+        byte[] opt = new byte[Long.bitCount(kinds) * 2];
+        int i = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if ((kinds & (1L << bit)) == 0) continue;
+            opt[i++] = optionKind(bit);
+            opt[i++] = 2;
+        }
+        return opt;
+    }
+    
+    /** Retrieve the bit of a known TCP option kind: the experimental kinds
+     * 0xFD and 0xFE use bits 62 and 63, every other known kind is lower. */
+    private static int optionBit(byte kind) {
+        int k = kind & 0xFF;
+        return (k < 62) ? k : k - 0xFD + 62;
+    }
+    
+    /** Retrieve the TCP option kind of the given bit (see optionBit). */
+    private static byte optionKind(int bit) {
+        return (byte)((bit < 62) ? bit : bit - 62 + 0xFD);
+    }
+    
     /** Return a String representation of the TCPEntity. */
     public String toString() {
         return ip.toString() + ":" + port;
@@ -0,0 +1,22 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * Classes of the TCP flows, as told by the first bytes of their payload: a
+ * flow which is not SMTP is only counted, its payload being dropped.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+public enum TCPFlowClass {
+    /** Not classified yet, or flow classification disabled */
+    UNKNOWN,
+    /** An SMTP flow, or a flow on an SMTP port */
+    SMTP,
+    /** A flow which is not SMTP */
+    OTHER;
+}
@@ -0,0 +1,21 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * Policies applied when the out of order segments of a TCP flow exceed the
+ * reassembly buffer limits, i.e. when a hole in the stream is considered
+ * unrecoverable.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+public enum TCPHolePolicy {
+    /** Keep waiting for the hole and drop the new out of order segments */
+    DROP_SEGMENT,
+    /** Give the hole up: the stream resumes at the first buffered segment */
+    SKIP_HOLE;
+}
@@ -0,0 +1,185 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the buffer of the out of order segments sent by one
+ * entity of a TCP session. The segments are kept sorted by sequence number as
+ * disjoint intervals [sequence, sequence + data length): the bytes of a new
+ * segment already held by buffered segments are trimmed, and buffered segments
+ * covered by a new one are replaced. The bytes buffered by each direction of
+ * a flow, i.e. by each buffer, and by all the flows together are bounded (see
+ * setLimits).
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import jpcap.packet.TCPPacket;
+
+class TCPReassemblyBuffer {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The buffered segments indexed by sequence number */
+    private TreeMap<Long, TCPPacket> segments;
+    /** The number of bytes buffered */
+    private int bytes;
+    /** The maximum number of bytes buffered by one direction of a flow */
+    private static volatile int direction_limit = 1 << 20;
+    /** The maximum number of bytes buffered by all the flows */
+    private static volatile long global_limit = 1L << 28;
+    /** The policy applied when a limit is reached */
+    private static volatile TCPHolePolicy policy = TCPHolePolicy.SKIP_HOLE;
+    /** The number of bytes buffered by all the flows */
+    private static final AtomicLong GLOBAL_BYTES = new AtomicLong(0);
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new empty reassembly buffer. */
+    TCPReassemblyBuffer() {
+        segments = null;
+        bytes = 0;
+    }
+    
+    /** METHODS */
+    
+    /** Buffer the given out of order segment. Return false if the segment is
+     * a duplicate or if it exceeds a limit under the DROP_SEGMENT policy. */
+    boolean add(TCPPacket p) {
+        if (segments == null) segments = new TreeMap<Long, TCPPacket>();
+        long s = p.sequence;
+        long e = s + p.data.length;
+        // trim the bytes held by the preceding segment
+        Map.Entry<Long, TCPPacket> f = segments.floorEntry(s);
+        if (f != null) {
+            long f_end = end(f.getValue());
+            if (f_end >= e && (f_end > s || f.getKey() == s)) return false;
+            if (f_end > s) {
+                trimFront(p, f_end - s);
+                s = f_end;
+            }
+        }
+        if (e == s && segments.containsKey(s)) return false;
+        if (policy == TCPHolePolicy.DROP_SEGMENT &&
+            (bytes + (e - s) > direction_limit ||
+             GLOBAL_BYTES.get() + (e - s) > global_limit))
+            return false;
+        // replace the following segments covered by the new one and trim the
+        // bytes held by the first one which is not covered
+        Map.Entry<Long, TCPPacket> c;
+        while ((c = segments.ceilingEntry(s)) != null && c.getKey() < e) {
+            if (end(c.getValue()) <= e) {
+                segments.remove(c.getKey());
+                release(c.getValue().data.length);
+            } else {
+                trimBack(p, c.getKey() - s);
+                e = c.getKey();
+            }
+        }
+        segments.put(s, p);
+        bytes += (int)(e - s);
+        GLOBAL_BYTES.addAndGet(e - s);
+        return true;
+    }
+    
+    /** Remove and return the buffered segment starting at the given next
+     * expected sequence number (trimmed if it starts before), dropping the
+     * segments lying entirely before. Return null if there is a hole before
+     * the first buffered segment. */
+    TCPPacket poll(long next) {
+        if (segments == null) return null;
+        Map.Entry<Long, TCPPacket> f;
+        while ((f = segments.firstEntry()) != null && f.getKey() <= next) {
+            segments.pollFirstEntry();
+            TCPPacket p = f.getValue();
+            release(p.data.length);
+            long e = end(p);
+            if (e > next || f.getKey() == next) {
+                if (p.sequence < next) trimFront(p, next - p.sequence);
+                return p;
+            }
+        }
+        return null;
+    }
+    
+    /** Return true if the buffer exceeds the direction or the global
+     * limit. */
+    boolean isOverLimit() {
+        return bytes > direction_limit || GLOBAL_BYTES.get() > global_limit;
+    }
+    
+    /** Retrieve the sequence number of the first buffered segment, i.e. the end
+     * of the first hole, -1 if the buffer is empty. */
+    long firstSequence() {
+        return (segments == null || segments.isEmpty()) ?
+            -1 : segments.firstKey();
+    }
+    
+    /** Retrieve the number of buffered segments. */
+    int size() { return (segments == null) ? 0 : segments.size(); }
+    
+    /** Retrieve the number of buffered bytes. */
+    int bytes() { return bytes; }
+    
+    /** Drop every buffered segment. */
+    void clear() {
+        if (segments == null) return;
+        GLOBAL_BYTES.addAndGet(-bytes);
+        bytes = 0;
+        segments = null;
+    }
+    
+    /** Set the maximum number of bytes buffered by each direction of a flow
+     * and by all the flows together, and the policy applied when one of them
+     * is reached. */
+    static void setLimits(int direction_bytes, long global_bytes,
+                          TCPHolePolicy hole_policy) {
+        direction_limit = direction_bytes;
+        global_limit = global_bytes;
+        policy = hole_policy;
+    }
+    
+    /** Retrieve the maximum number of bytes buffered by each direction of a
+     * flow. */
+    static int getDirectionLimit() { return direction_limit; }
+    
+    /** Retrieve the maximum number of bytes buffered by all the flows. */
+    static long getGlobalLimit() { return global_limit; }
+    
+    /** Retrieve the policy applied when a limit is reached. */
+    static TCPHolePolicy getPolicy() { return policy; }
+    
+    /** Release the given number of buffered bytes. */
+    private void release(int n) {
+        bytes -= n;
+        GLOBAL_BYTES.addAndGet(-n);
+    }
+    
+    /** Retrieve the sequence number following the data of a segment. */
+    private static long end(TCPPacket p) {
+        return p.sequence + p.data.length;
+    }
+    
+    /** Remove the given number of bytes from the beginning of a segment. */
+    private static void trimFront(TCPPacket p, long n) {
+        p.data = Arrays.copyOfRange(p.data, (int)n, p.data.length);
+        p.sequence += n;
+        // the SYN occupies the first sequence number
+        p.syn = false;
+    }
+    
+    /** Keep the given number of bytes at the beginning of a segment. */
+    private static void trimBack(TCPPacket p, long n) {
+        p.data = Arrays.copyOf(p.data, (int)n);
+        // the FIN follows the last byte
+        p.fin = false;
+    }
+    
+}
@@ -7,13 +7,15 @@
  * 
  * This class represents a TCP session. A TCP session is uniquely identified by
  * the quadruple <src_ip, src_port, dst_ip, dst_port>.
+ * A TCP session may be classified from the first bytes of its payload, the
+ * source being the client: a flow which is not SMTP is then only counted, its
+ * payload being dropped (see TCPFlowClass).
  * 
  */
 
 package be.ulg.vervier.SmtpDump.TCPSessionManagement;
 
 import java.util.Collection;
-import java.util.LinkedList;
 import java.util.GregorianCalendar;
 import java.util.Date;
 import java.net.InetAddress;
@@ -25,8 +27,16 @@ public class TCPSession {
     
     /** INSTANCE VARIABLES */
     
-    /** The list of TCP packets */
-    private LinkedList<TCPPacket> packets;
+    /** The payload segments added to the session in order, one long per
+     * segment: the sender (high bit set for the destination), the offset of
+     * the segment in the stream of the sender (SEGMENT_OFFSET_BITS) and its
+     * length (SEGMENT_LENGTH_BITS) */
+    private long[] segments;
+    /** The number of payload segments */
+    private int segment_count;
+    /** The object attached to the session by its consumer, e.g. the state of
+     * a parser following its payload */
+    private Object attachment;
     /** The source TCP entity */
     private TCPEntity src;
     /** The destination TCP entity */
@@ -43,33 +53,86 @@ public class TCPSession {
     private boolean has_fin;
     /** True if the TCP session has been reset by one of the entities */
     private boolean has_rst;
+    /** True if the TCP session has been picked up after its handshake, i.e.
+     * its beginning is missing */
+    private boolean partial;
+    /** The class of the flow, as told by the first bytes of its payload */
+    private TCPFlowClass flow_class;
     /** The start time of the TCP session (timestamp format) */
     private long start_time;
+    /** The capture time of the last TCP packet of the session (in msec) */
+    private long last_time;
+    /** The capture time after which the open session expires (in msec), as
+     * set by the TCP session builder */
+    long expiry_time;
+    /** The initial segment index */
+    private static final long[] NO_SEGMENTS = new long[0];
+    /** The beginning of the SMTP server replies which may start a TCP session
+     * picked up after its handshake */
+    private static final byte[][] SERVER_PICKUP = {
+        "220 ".getBytes(), "220-".getBytes(),
+        "250 ".getBytes(), "250-".getBytes()
+    };
+    /** The beginning of the SMTP client commands which may start a TCP
+     * session picked up after its handshake (case insensitive) */
+    private static final byte[][] CLIENT_PICKUP = {
+        "MAIL FROM:".getBytes(), "RCPT TO:".getBytes()
+    };
+    /** The SMTP client commands which may begin the payload of an SMTP
+     * client, i.e. the 4-letter verbs of RFC 5321 (case insensitive) */
+    private static final byte[][] CLIENT_VERBS = {
+        "HELO".getBytes(), "EHLO".getBytes(), "MAIL".getBytes(),
+        "RCPT".getBytes(), "DATA".getBytes(), "RSET".getBytes(),
+        "NOOP".getBytes(), "QUIT".getBytes(), "VRFY".getBytes(),
+        "EXPN".getBytes(), "HELP".getBytes(), "STAR".getBytes(),
+        "AUTH".getBytes()
+    };
+    /** The number of bytes of payload which tell the class of a flow */
+    private static final int CLASSIFY_LENGTH = 4;
+    /** The number of bits of the length of a payload segment, enough for
+     * the largest snapshot length of a capture */
+    private static final int SEGMENT_LENGTH_BITS = 20;
+    /** The number of bits of the offset of a payload segment in its
+     * stream */
+    private static final int SEGMENT_OFFSET_BITS = 63 - SEGMENT_LENGTH_BITS;
+    /** The maximum length of a payload segment */
+    private static final int MAX_SEGMENT_LENGTH =
+        (1 << SEGMENT_LENGTH_BITS) - 1;
+    /** The maximum offset of a payload segment in its stream */
+    private static final long MAX_SEGMENT_OFFSET =
+        (1L << SEGMENT_OFFSET_BITS) - 1;
     
     /** CONSTRUCTORS */
     
     /** Default constructor. */
     public TCPSession() {
-        packets = new LinkedList<TCPPacket>();
+        segments = NO_SEGMENTS;
+        segment_count = 0;
+        attachment = null;
         last_cap_sec = 0;
         last_cap_msec = 0;
         has_syn = false;
         has_fin = false;
         has_rst = false;
+        partial = false;
+        flow_class = TCPFlowClass.UNKNOWN;
         start_time = 0;
+        last_time = 0;
+        expiry_time = 0;
     }
     
     /** METHODS */
     
     /** Add the given packet to the TCP session. */
     public boolean addPacket(TCPPacket packet) {
-        if (packets.isEmpty()) { // for the first packet
+        if (src == null) { // for the first packet
             src = new TCPEntity(packet.src_ip, packet.src_port);
             dst = new TCPEntity(packet.dst_ip, packet.dst_port);
             last_cap_sec = packet.sec;
             last_cap_msec = packet.usec / 1000;
             start_time = (packet.sec * 1000) + (packet.usec / 1000);
         }
+        last_time = (packet.sec * 1000) + (packet.usec / 1000);
         TCPEntity a = null;
         TCPEntity b = null;
         if (packet.src_ip.equals(src.ip) && packet.src_port == src.port) {
@@ -89,69 +152,301 @@ public class TCPSession {
                 a.last_sent_packet_data_len > 0) return false;
             // TCP out of order segment
             if (a.last_byte_sent != 0 &&
-                packet.sequence != 
-                a.last_byte_sent + a.last_sent_packet_data_len) {
-                int i = 0;
-                while (i < b.p_buffer.size() &&
-                       packet.sequence <= b.p_buffer.get(i).sequence) {
-                    i++;
+                packet.sequence != nextSequence(a)) {
+                if (!a.p_buffer.add(packet)) return false;
+                // an unrecoverable hole is given up if the buffer limits are
+                // exceeded
+                while (a.p_buffer.isOverLimit() &&
+                       TCPReassemblyBuffer.getPolicy() ==
+                       TCPHolePolicy.SKIP_HOLE &&
+                       a.p_buffer.firstSequence() > nextSequence(a)) {
+                    a.lost_bytes += a.p_buffer.firstSequence() -
+                                    nextSequence(a);
+                    a.last_byte_sent = a.p_buffer.firstSequence();
+                    a.last_sent_packet_data_len = 0;
+                    drainSegments(a, b);
                 }
-                b.p_buffer.add(i, packet);
                 return true;
             }
-            if (packet.syn) { // <a> has sent a syn
-                a.has_syn = true;
-                a.syn_seq = packet.sequence;
-                if (a.last_byte_acked == 0) {
-                    a.start_seq = a.syn_seq; // save first seq num exhibited
-                    a.extractTCPOptions(packet.option); // save TCP options
-                }
-            } else if (packet.fin) { // <a> has sent a fin
-                a.has_fin = true;
-                a.fin_seq = (packet.sequence > a.fin_seq) ?
-                    packet.sequence : a.fin_seq;
-            } else if (packet.rst) { // <a> has sent a rst
-                a.has_rst = true;
+            addSegment(a, b, packet);
+            // the packet may fill a hole: add every contiguous out of order
+            // segment
+            drainSegments(a, b);
+            return true;
+        }
+        return false;
+    }
+    
+    /** Open the TCP session from the given data segment of a connection
+     * already established, i.e. whose handshake has not been seen. The SMTP
+     * client becomes the source of the session and both entities are
+     * considered established. The session is marked as partial. */
+    boolean pickUp(TCPPacket packet) {
+        if (startsWith(packet.data, CLIENT_PICKUP)) {
+            src = new TCPEntity(packet.src_ip, packet.src_port);
+            dst = new TCPEntity(packet.dst_ip, packet.dst_port);
+        } else {
+            src = new TCPEntity(packet.dst_ip, packet.dst_port);
+            dst = new TCPEntity(packet.src_ip, packet.src_port);
+        }
+        src.state = TCPState.ESTABLISHED;
+        dst.state = TCPState.ESTABLISHED;
+        last_cap_sec = packet.sec;
+        last_cap_msec = packet.usec / 1000;
+        start_time = (packet.sec * 1000) + (packet.usec / 1000);
+        partial = true;
+        return addPacket(packet);
+    }
+    
+    /** Add the given in order segment sent by <a> to the session. */
+    private void addSegment(TCPEntity a, TCPEntity b, TCPPacket packet) {
+        if (packet.syn) { // <a> has sent a syn
+            a.has_syn = true;
+            a.syn_seq = packet.sequence;
+            if (a.last_byte_acked == 0) {
+                a.start_seq = a.syn_seq; // save first seq num exhibited
+                a.extractTCPOptions(packet.option); // save TCP options
             }
-            if (packet.ack) { // <a> has sent an ack
-                // update "last_byte_acked"
-                b.last_byte_acked = (packet.ack_num > b.last_byte_acked) ?
-                    packet.ack_num : b.last_byte_acked;
-                // check if "ack" number matches <b>'s syn sequence number
-                if (b.has_syn && !a.has_ack_syn)
-                    a.has_ack_syn = packet.ack_num == b.syn_seq + 1;
-                // check if "ack' number matches <b>'s fin sequence number
-                else if (b.has_fin && !a.has_ack_fin)
-                    a.has_ack_fin = packet.ack_num == b.fin_seq + 1;
+        } else if (packet.fin) { // <a> has sent a fin
+            a.has_fin = true;
+            a.fin_seq = (packet.sequence > a.fin_seq) ?
+                packet.sequence : a.fin_seq;
+        } else if (packet.rst) { // <a> has sent a rst
+            a.has_rst = true;
+        }
+        boolean acks_syn = false;
+        boolean acks_fin = false;
+        if (packet.ack) { // <a> has sent an ack
+            // update "last_byte_acked"
+            b.last_byte_acked = (packet.ack_num > b.last_byte_acked) ?
+                packet.ack_num : b.last_byte_acked;
+            // check if "ack" number matches <b>'s syn sequence number
+            if (b.has_syn && !a.has_ack_syn)
+                acks_syn = a.has_ack_syn = packet.ack_num == b.syn_seq + 1;
+            // check if "ack' number matches <b>'s fin sequence number
+            else if (b.has_fin && !a.has_ack_fin)
+                acks_fin = a.has_ack_fin = packet.ack_num == b.fin_seq + 1;
+        }
+        updateStates(a, b, packet, acks_syn, acks_fin);
+        // update TCP session state
+        has_syn = src.has_ack_syn && dst.has_ack_syn;
+        has_fin = src.has_ack_fin && dst.has_ack_fin;
+        has_rst = src.has_rst || dst.has_rst;
+        // update TCP session information
+        a.last_byte_sent = (packet.syn || packet.fin || packet.rst) ?
+            packet.sequence + 1 : packet.sequence;
+        a.last_sent_packet_data_len = packet.data.length;
+        a.window = packet.window;
+        duration = getDuration(packet.sec, packet.usec);
+        // add packet payload to the stream of <a>, the packet itself is
+        // not retained
+        if (packet.data.length > 0) addPayload(a, packet.data);
+        a.packet_count++;
+    }
+    
+    /** Update the TCP states of <a> and <b> with the given in order segment
+     * sent by <a>, which may acknowledge the SYN or the FIN of <b>. */
+    private static void updateStates(TCPEntity a, TCPEntity b,
+                                     TCPPacket packet, boolean acks_syn,
+                                     boolean acks_fin) {
+        if (packet.rst) {
+            a.state = TCPState.CLOSED;
+            b.state = TCPState.CLOSED;
+            return;
+        }
+        if (packet.syn)
+            a.state = packet.ack ? TCPState.SYN_RCVD : TCPState.SYN_SENT;
+        // an entity is established once its SYN is acknowledged
+        if (acks_syn &&
+            (b.state == TCPState.SYN_SENT || b.state == TCPState.SYN_RCVD))
+            b.state = TCPState.ESTABLISHED;
+        if (packet.fin) {
+            switch (a.state) {
+                case CLOSE_WAIT: a.state = TCPState.LAST_ACK; break;
+                case FIN_WAIT_1: case FIN_WAIT_2: case CLOSING:
+                case TIME_WAIT: case LAST_ACK: case CLOSED: break;
+                default: a.state = TCPState.FIN_WAIT_1; break;
             }
-            // update TCP session state
-            has_syn = src.has_ack_syn && dst.has_ack_syn;
-            has_fin = src.has_ack_fin && dst.has_ack_fin;
-            has_rst = src.has_rst || dst.has_rst;
-            // update TCP session information
-            a.last_byte_sent = (packet.syn || packet.fin || packet.rst) ?
-                packet.sequence + 1 : packet.sequence;
-            a.last_sent_packet_data_len = packet.data.length;
-            a.window = packet.window;
-            duration = getDuration(packet.sec, packet.usec);
-            // add packet to session
-            packets.add(packet);
-            a.packet_count++;
-            // if a packet is added to the session, check if it fills a hole
-            // in the out of order packets buffer
-            if (b.p_buffer.size() > 0 &&
-                packet.sequence + packet.data.length == 
-                b.p_buffer.get(0).sequence) {
-                TCPPacket p = b.p_buffer.remove(0);
-                addPacket(p);
+            switch (b.state) {
+                case FIN_WAIT_1: b.state = TCPState.CLOSING; break;
+                case FIN_WAIT_2: b.state = TCPState.TIME_WAIT; break;
+                case CLOSE_WAIT: case CLOSING: case TIME_WAIT:
+                case LAST_ACK: case CLOSED: break;
+                default: b.state = TCPState.CLOSE_WAIT; break;
             }
-            return true;
         }
-        return false;
+        if (acks_fin) {
+            switch (b.state) {
+                case FIN_WAIT_1: b.state = TCPState.FIN_WAIT_2; break;
+                case CLOSING: b.state = TCPState.TIME_WAIT; break;
+                case LAST_ACK: b.state = TCPState.CLOSED; break;
+                default: break;
+            }
+        }
+    }
+    
+    /** Add every out of order segment sent by <a> which follows the stream
+     * without hole. */
+    private void drainSegments(TCPEntity a, TCPEntity b) {
+        TCPPacket p;
+        while ((p = a.p_buffer.poll(nextSequence(a))) != null)
+            addSegment(a, b, p);
+    }
+    
+    /** Retrieve the next sequence number expected from the given entity. */
+    private static long nextSequence(TCPEntity a) {
+        return a.last_byte_sent + a.last_sent_packet_data_len;
+    }
+    
+    /** Append the given payload to the stream of the given entity and record
+     * the segment boundaries. The payload of a flow which is not SMTP is
+     * dropped. A payload longer than MAX_SEGMENT_LENGTH is recorded as
+     * several segments. The payload past MAX_SEGMENT_OFFSET bytes of a
+     * stream, which cannot be packed, or which the stream cannot hold as its
+     * bytes are not released, is dropped. */
+    private void addPayload(TCPEntity a, byte[] data) {
+        if (flow_class == TCPFlowClass.OTHER) return;
+        long offset = a.stream.length();
+        if (offset + data.length > MAX_SEGMENT_OFFSET ||
+            a.stream.size() + data.length > TCPStream.MAX_CAPACITY)
+            return;
+        for (int off = 0; off < data.length; off += MAX_SEGMENT_LENGTH) {
+            if (segment_count == segments.length) {
+                long[] t = new long[Math.max(16, segments.length << 1)];
+                System.arraycopy(segments, 0, t, 0, segment_count);
+                segments = t;
+            }
+            long s = ((offset + off) << SEGMENT_LENGTH_BITS) |
+                     Math.min(data.length - off, MAX_SEGMENT_LENGTH);
+            segments[segment_count++] = (a == dst) ? s | Long.MIN_VALUE : s;
+        }
+        a.stream.append(data);
+    }
+    
+    /** Release the unused capacity of the session buffers, once no more
+     * packets are added to the session. */
+    void trim() {
+        if (segment_count < segments.length) {
+            long[] t = new long[segment_count];
+            System.arraycopy(segments, 0, t, 0, segment_count);
+            segments = t;
+        }
+        if (src != null) src.stream.trim();
+        if (dst != null) dst.stream.trim();
+        release();
+    }
+    
+    /** Drop the out of order segments still buffered, releasing their bytes
+     * from the reassembly limits. */
+    void release() {
+        if (src != null) src.p_buffer.clear();
+        if (dst != null) dst.p_buffer.clear();
+    }
+    
+    /** Classify the flow from the first bytes of its payload, if it is not
+     * classified yet, and return its class. The flow is SMTP if it has been
+     * picked up as SMTP, if its server port is an SMTP port (as told by the
+     * caller), if its server sends a reply (3 digits and a space or a
+     * hyphen, e.g. a 220 banner) or if its client speaks first with an SMTP
+     * command (e.g. EHLO). Otherwise, once the first bytes of the first
+     * entity to speak are received, the flow is not SMTP and its payload is
+     * dropped: the session only counts its packets. */
+    TCPFlowClass classify(boolean smtp_port) {
+        if (flow_class != TCPFlowClass.UNKNOWN) return flow_class;
+        if (partial || smtp_port) return flow_class = TCPFlowClass.SMTP;
+        TCPStream server = dst.stream;
+        TCPStream client = src.stream;
+        // the bytes already released by a listener cannot be classified
+        if (server.base() > 0 || client.base() > 0)
+            return flow_class = TCPFlowClass.SMTP;
+        if (server.length() > 0) {
+            if (server.length() < CLASSIFY_LENGTH) return flow_class;
+            if (isReply(server.array())) return flow_class = TCPFlowClass.SMTP;
+        } else {
+            if (client.length() < CLASSIFY_LENGTH) return flow_class;
+            // no byte is discarded yet: the stream is held by its buffer
+            if (startsWith(client.array(), (int)client.length(),
+                           CLIENT_VERBS))
+                return flow_class = TCPFlowClass.SMTP;
+        }
+        dropPayload();
+        return flow_class = TCPFlowClass.OTHER;
     }
     
-    /** Retrieve the collection of TCP packets. */
-    public Collection<TCPPacket> getPackets() { return packets; }
+    /** Drop the payload of the session: the offsets in the streams are kept,
+     * but no payload segment is left. The out of order segments are still
+     * buffered, as they carry the sequence numbers and flags which the
+     * session follows. */
+    private void dropPayload() {
+        segments = NO_SEGMENTS;
+        segment_count = 0;
+        attachment = null;
+        src.stream.discard(src.stream.length());
+        dst.stream.discard(dst.stream.length());
+        // no payload is appended any more
+        src.stream.trim();
+        dst.stream.trim();
+    }
+    
+    /** Retrieve the class of the flow, UNKNOWN if it has not been
+     * classified. */
+    public TCPFlowClass getFlowClass() { return flow_class; }
+    
+    /** Retrieve the number of bytes given up as lost in holes of the streams of
+     * the session. */
+    public long getLostBytes() {
+        return (src == null) ? 0 : src.lost_bytes + dst.lost_bytes;
+    }
+    
+    /** Retrieve the number of payload segments, i.e. TCP packets carrying
+     * data, in the order they were added to the session. */
+    public int getSegmentCount() { return segment_count; }
+    
+    /** Return true if the given payload segment was sent by the source, false
+     * if it was sent by the destination. */
+    public boolean isSourceSegment(int i) { return segments[i] >= 0; }
+    
+    /** Release the bytes of the source and destination streams before the
+     * given offsets, once they have been processed: the streams only keep the
+     * following bytes. */
+    public void releaseStreams(long src_offset, long dst_offset) {
+        if (src != null) src.stream.discard(src_offset);
+        if (dst != null) dst.stream.discard(dst_offset);
+    }
+    
+    /** Retrieve the object attached to the session, null if there is
+     * none. */
+    public Object attachment() { return attachment; }
+    
+    /** Attach the given object to the session, e.g. the state of a parser
+     * following its payload. */
+    public void attach(Object attachment) { this.attachment = attachment; }
+    
+    /** Retrieve the offset of the given payload segment in the stream of its
+     * sender. */
+    public long getSegmentOffset(int i) {
+        return (segments[i] & Long.MAX_VALUE) >>> SEGMENT_LENGTH_BITS;
+    }
+    
+    /** Retrieve the length of the given payload segment. */
+    public int getSegmentLength(int i) {
+        return (int)segments[i] & MAX_SEGMENT_LENGTH;
+    }
+    
+    /** Retrieve the stream holding the given payload segment. */
+    public TCPStream getSegmentStream(int i) {
+        return isSourceSegment(i) ? src.stream : dst.stream;
+    }
+    
+    /** Retrieve the payload stream sent by the source. */
+    public TCPStream getSourceStream() {
+        return (src != null) ? src.stream : null;
+    }
+    
+    /** Retrieve the payload stream sent by the destination. */
+    public TCPStream getDestinationStream() {
+        return (dst != null) ? dst.stream : null;
+    }
     
     /** Retrieve the source IP of the session. */
     public InetAddress getSourceIP() { return src.ip; }
@@ -175,6 +470,10 @@ public class TCPSession {
     /** Return true if the connection has been reset, false otherwise. */
     public boolean hasRst() { return has_rst; }
     
+    /** Return true if the TCP session has been picked up after its handshake,
+     * i.e. its beginning is missing, false otherwise. */
+    public boolean isPartial() { return partial; }
+    
     /** Return true if the connection has been opened but not yet closed or
      * reset, false otherwise. */
     public boolean isOpen() { return !(has_fin || has_rst); }
@@ -205,6 +504,16 @@ public class TCPSession {
     /** Retrieve the TCP session start time (timestamp format). */
     public long getStartTime() { return start_time; }
     
+    /** Retrieve the capture time of the last TCP packet of the session (in
+     * msec). */
+    public long getLastTime() { return last_time; }
+    
+    /** Retrieve the TCP state of the source. */
+    public TCPState getSourceState() { return src.state; }
+    
+    /** Retrieve the TCP state of the destination. */
+    public TCPState getDestinationState() { return dst.state; }
+    
     /** Retrieve the source TCP first sequence number. */
     public long getSourceStartSeq() { return src.start_seq; }
     
@@ -218,7 +527,9 @@ public class TCPSession {
     public Collection<String> getDestinationOptions() { return dst.options; }
     
     /** Retrieve the number of TCP packets in the TCP session. */
-    public int size() { return packets.size(); }
+    public int size() {
+        return (src == null) ? 0 : src.packet_count + dst.packet_count;
+    }
     
     /** Retrieve the number of TCP packets sent by the source. */
     public int getSourcePacketCount() { return src.packet_count; }
@@ -228,13 +539,58 @@ public class TCPSession {
     
     /** Return true if the session is empty, i.e. contains no TCP packets, false
      * otherwise. */
-    public boolean isEmpty() { return packets.isEmpty(); }
+    public boolean isEmpty() { return size() == 0; }
     
     /** Return true if the packet is a valid first packet for a TCP session. */
     public static boolean isValidFirstPacket(TCPPacket p) {
         return p.syn;
     }
     
+    /** Return true if the packet may open a TCP session picked up after its
+     * handshake, i.e. it carries the beginning of an SMTP server reply (220 or
+     * 250) or of an SMTP client command (MAIL FROM or RCPT TO). */
+    public static boolean isValidMidStreamPacket(TCPPacket p) {
+        return p.ack && !p.syn && !p.fin && !p.rst &&
+               (startsWith(p.data, SERVER_PICKUP) ||
+                startsWith(p.data, CLIENT_PICKUP));
+    }
+    
+    /** Return true if the given data starts with one of the given prefixes,
+     * letters being compared case insensitively. */
+    private static boolean startsWith(byte[] data, byte[][] prefixes) {
+        return data != null && startsWith(data, data.length, prefixes);
+    }
+    
+    /** Return true if the given number of bytes of the given data start with
+     * one of the given prefixes, letters being compared case
+     * insensitively. */
+    private static boolean startsWith(byte[] data, int length,
+                                      byte[][] prefixes) {
+        for (byte[] prefix: prefixes) {
+            if (length < prefix.length) continue;
+            int i = 0;
+            while (i < prefix.length &&
+                   toLowerCase(data[i]) == toLowerCase(prefix[i])) i++;
+            if (i == prefix.length) return true;
+        }
+        return false;
+    }
+    
+    /** Return true if the given data starts with an SMTP reply, i.e. 3
+     * digits and a space or a hyphen. */
+    private static boolean isReply(byte[] data) {
+        return isDigit(data[0]) && isDigit(data[1]) && isDigit(data[2]) &&
+               (data[3] == ' ' || data[3] == '-');
+    }
+    
+    /** Return true if the given byte is an ASCII digit. */
+    private static boolean isDigit(byte b) { return b >= '0' && b <= '9'; }
+    
+    /** Convert an ASCII upper case letter to lower case. */
+    private static int toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b | 0x20 : b;
+    }
+    
     /** Return a String representation of the TCP session. */
     public String toString() {
         StringBuilder sb = new StringBuilder(300);
@@ -246,13 +602,15 @@ public class TCPSession {
         sb.append(":");
         sb.append(dst.port);
         sb.append(" [");
-        sb.append(packets.size());
+        sb.append(size());
         sb.append(" packets, ");
         sb.append(duration);
         sb.append(" msec");
         sb.append((has_syn ? ", syn" : ""));
         sb.append((has_fin ? ", fin" : ""));
         sb.append((has_rst ? ", rst" : ""));
+        sb.append((partial ? ", partial" : ""));
+        sb.append((flow_class == TCPFlowClass.OTHER ? ", not smtp" : ""));
         sb.append("], src opt = ");
         sb.append(src.options);
         sb.append(", dst opt = ");
@@ -15,7 +15,7 @@ package be.ulg.vervier.SmtpDump.TCPSessionManagement;
 
 import java.util.Collection;
 import java.util.LinkedList;
-import java.util.Iterator;
+import java.util.PriorityQueue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.HashMap;
 import java.util.logging.Logger;
@@ -31,28 +31,74 @@ public class TCPSessionBuilder implements Runnable {
     
     /** The packet captor */
     private PacketCaptor captor;
+    /** The packet filter expression applied by the packet captor, null if
+     * every TCP packet is read */
+    private String filter_expression;
+    /** The number of partitions of a large capture file decoded and rebuilt
+     * in parallel, 1 if the file is read sequentially */
+    private int partition_count;
+    /** The TCP session builders of the partitions, each one owning its
+     * sessions and counters */
+    private LinkedList<TCPSessionBuilder> partitions;
     /** Map storing currently open TCP sessions */
-    private HashMap<TCPSessionID, TCPSession> w_sessions;
-    /** Map storing opening TCP sessions, i.e. 3-way handshake not complete */
-    private HashMap<TCPSessionID, TCPSession> in_buff_sessions;
-    /** Queue storing opening TCP sessions, i.e. 3-way handshake not complete */
-    private LinkedList<TCPSessionID> in_queue_sessions;
+    private FlowTable<TCPSession> w_sessions;
+    /** The expiry timers of the currently open TCP sessions, ordered by
+     * deadline */
+    private PriorityQueue<SessionTimer> timers;
+    /** Table storing opening TCP sessions, i.e. 3-way handshake not
+     * complete, in creation order */
+    private SynTable syn_sessions;
+    /** True if the handshake segments of an opening TCP session are kept in a
+     * compact record until the handshake goes on */
+    private boolean compact_syn;
     /** The collection of rebuilt TCP sessions */
     private ArrayBlockingQueue<TCPSession> q_sessions;
     /** Data structure mapping TCP sessions source IP and the number of sessions
      * issued by each IP */
     private HashMap<InetAddress, Integer> src_ips;
-    /** The maximum number of opening TCP sessions,
+    /** The default maximum number of opening TCP sessions,
      * i.e. 3-way handshake not complete */
-    private static final int MAX_SYN_SESSIONS = 300;
+    private static final int MAX_SYN_SESSIONS = 4096;
+    /** True if the TCP sessions whose handshake has not been captured are
+     * picked up from their SMTP data segments */
+    private boolean mid_stream;
+    /** The listener following the payload of the open TCP sessions, if
+     * any */
+    private TCPSessionListener listener;
+    /** True if the TCP sessions are classified from the first bytes of their
+     * payload, the flows which are not SMTP being only counted */
+    private boolean classify_flows;
+    /** The server ports whose TCP sessions are SMTP without being
+     * classified */
+    private int[] smtp_ports;
+    /** The idle timeout of an open TCP session (in msec) in each TCP state,
+     * indexed by state */
+    private long[] idle_timeouts;
+    /** The default idle timeout of an opening TCP session (in msec) */
+    private static final long HANDSHAKE_TIMEOUT = 30000;  // 30 sec
+    /** The default idle timeout of an established TCP session (in msec), the
+     * longest SMTP server timeout of RFC 5321 */
+    private static final long ESTABLISHED_TIMEOUT = 600000;  // 10 min
+    /** The default idle timeout of a closing TCP session (in msec) */
+    private static final long CLOSING_TIMEOUT = 60000;  // 1 min
+    /** The default idle timeout of a reset TCP session (in msec) */
+    private static final long CLOSED_TIMEOUT = 10000;  // 10 sec
+    /** The number of packets buffered for each partition */
+    private static final int RING_CAPACITY = 8192;
     /** The number of TCP packets added to a TCP session */
     private int tcp_packet_count;
     /** The number of rebuilt TCP sessions */
     private int tcp_session_count;
+    /** The number of TCP sessions picked up after their handshake */
+    private int partial_session_count;
+    /** The number of TCP sessions classified as not SMTP */
+    private int other_session_count;
     /** Temporary TCP session */
     private TCPSession t_session;
-    /** Temporary TCP session identifier */
-    private TCPSessionID t_session_id;
+    /** Temporary opening TCP session */
+    private SynEntry t_syn;
+    /** Temporary TCP session identifier, refilled from each packet */
+    private FlowKey t_session_id;
     /** The mean duration of a TCP session (in msec) */
     private double mean_duration;
     /** The mean deviation of the duration of a TCP session (in msec) */
@@ -132,12 +178,34 @@ public class TCPSessionBuilder implements Runnable {
                              String network_resource_id) {
         this.q_sessions = q_sessions;
         setResourceIdentifier(network_resource_id);
-        w_sessions = new HashMap<TCPSessionID, TCPSession>(1000);
-        in_buff_sessions = new HashMap<TCPSessionID, TCPSession>(MAX_SYN_SESSIONS);
-        in_queue_sessions = new LinkedList<TCPSessionID>();
+        w_sessions = new FlowTable<TCPSession>(1000);
+        timers = new PriorityQueue<SessionTimer>(1000);
+        syn_sessions = new SynTable(MAX_SYN_SESSIONS);
+        compact_syn = false;
+        mid_stream = false;
+        listener = null;
+        classify_flows = false;
+        smtp_ports = new int[0];
+        idle_timeouts = new long[TCPState.values().length];
+        for (TCPState state: TCPState.values())
+            idle_timeouts[state.index()] = ESTABLISHED_TIMEOUT;
+        idle_timeouts[TCPState.SYN_SENT.index()] = HANDSHAKE_TIMEOUT;
+        idle_timeouts[TCPState.SYN_RCVD.index()] = HANDSHAKE_TIMEOUT;
+        idle_timeouts[TCPState.FIN_WAIT_1.index()] = CLOSING_TIMEOUT;
+        idle_timeouts[TCPState.FIN_WAIT_2.index()] = CLOSING_TIMEOUT;
+        idle_timeouts[TCPState.CLOSING.index()] = CLOSING_TIMEOUT;
+        idle_timeouts[TCPState.TIME_WAIT.index()] = CLOSING_TIMEOUT;
+        idle_timeouts[TCPState.CLOSE_WAIT.index()] = CLOSING_TIMEOUT;
+        idle_timeouts[TCPState.LAST_ACK.index()] = CLOSING_TIMEOUT;
+        idle_timeouts[TCPState.CLOSED.index()] = CLOSED_TIMEOUT;
+        t_session_id = new FlowKey();
         src_ips = new HashMap<InetAddress, Integer>(500);
+        partition_count = 1;
+        partitions = new LinkedList<TCPSessionBuilder>();
         tcp_packet_count = 0;
         tcp_session_count = 0;
+        partial_session_count = 0;
+        other_session_count = 0;
         mean_duration = 0;
         dev_duration = 0;
         max_duration = 18000000; // initial max duration set to 18000 sec = 5 h
@@ -156,20 +224,17 @@ public class TCPSessionBuilder implements Runnable {
     /** The TCP session builder tasks. */
     public void run() {
         try {
-            buildSessions();
+            if (partition_count > 1 && captor != null)
+                buildPartitionedSessions();
+            else
+                buildSessions();
         } catch (TCPSessionBuilderException tsbe) {
             LOGGER.severe(tsbe.getMessage() + "\n");
             System.exit(1);
         }
         
         try {
-            for (TCPSession s: w_sessions.values()) {
-                LOGGER_SESSION.fine(new StringBuilder(100).
-                                        append(s.toString()).
-                                        append("\n").toString());
-                q_sessions.put(s);
-                tcp_session_count++;
-            }
+            flushSessions();
             q_sessions.put(new TCPSession());
         } catch (InterruptedException ie) {
             LOGGER.severe("tcp-session-builder interrupted\n");
@@ -178,12 +243,139 @@ public class TCPSessionBuilder implements Runnable {
         //logReport();
     }
     
+    /** Deliver the TCP sessions still open at the end of the capture, i.e.
+     * of the last network data resource: up to then, a TCP session is only
+     * delivered when it is closed or expires. */
+    private void flushSessions() throws InterruptedException {
+        for (TCPSession s: w_sessions.values()) {
+            LOGGER_SESSION.fine(new StringBuilder(100).
+                                    append(s.toString()).
+                                    append("\n").toString());
+            s.trim();
+            q_sessions.put(s);
+            tcp_session_count++;
+        }
+        w_sessions.clear();
+        timers.clear();
+    }
+    
+    /** Build TCP sessions on several threads, each one owning the TCP
+     * sessions of a disjoint partition of the flows, selected by a direction
+     * independent hash of the flow key. A single large plain pcap
+     * file is decoded in parallel chunks already partitioned by flow; other
+     * resources are read on this thread, which dispatches the packets to the
+     * partitions through single-producer single-consumer ring buffers. The
+     * sessions of every partition are delivered to the same container. */
+    private void buildPartitionedSessions() throws TCPSessionBuilderException {
+        ChunkedPCAPFileReader reader = null;
+        RingPacketCaptor[] rings = null;
+        if (captor instanceof MappedPCAPFileReader) {
+            reader = new ChunkedPCAPFileReader(captor.getResourceIdentifier(),
+                                               partition_count);
+            try {
+                reader.setFilter(filter_expression);
+                reader.open();
+            } catch (PacketCaptorException pce) {
+                throw new TCPSessionBuilderException(pce.getMessage());
+            }
+        } else {
+            rings = new RingPacketCaptor[partition_count];
+            for (int i = 0; i < partition_count; i++)
+                rings[i] = new RingPacketCaptor(captor.getResourceIdentifier(),
+                                                RING_CAPACITY);
+        }
+        final TCPSessionBuilder[] builders =
+            new TCPSessionBuilder[partition_count];
+        final TCPSessionBuilderException[] errors =
+            new TCPSessionBuilderException[partition_count];
+        Thread[] threads = new Thread[partition_count];
+        for (int i = 0; i < partition_count; i++) {
+            builders[i] = new TCPSessionBuilder(q_sessions);
+            builders[i].setSynSessions(syn_sessions.capacity(), compact_syn);
+            builders[i].idle_timeouts = idle_timeouts.clone();
+            builders[i].mid_stream = mid_stream;
+            builders[i].listener = listener;
+            builders[i].classify_flows = classify_flows;
+            builders[i].smtp_ports = smtp_ports;
+            builders[i].captor =
+                (reader != null) ? reader.partition(i) : rings[i];
+            partitions.add(builders[i]);
+            // on failure, stop the source so that no other thread waits for
+            // this partition
+            final PacketCaptor source =
+                (reader != null) ? reader : builders[i].captor;
+            final int k = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        builders[k].buildSessions();
+                        builders[k].flushSessions();
+                    } catch (TCPSessionBuilderException tsbe) {
+                        errors[k] = tsbe;
+                        source.close();
+                    } catch (InterruptedException ie) {
+                        errors[k] = new TCPSessionBuilderException
+                            ("tcp-session-builder interrupted");
+                        source.close();
+                    }
+                }
+            }, "tcp-session-builder-" + i);
+            threads[i].start();
+        }
+        TCPSessionBuilderException error = null;
+        if (rings != null) {
+            try {
+                dispatchPackets(rings);
+            } catch (TCPSessionBuilderException tsbe) {
+                error = tsbe;
+            } finally {
+                for (RingPacketCaptor r: rings) r.finish();
+            }
+        }
+        try {
+            for (Thread t: threads) t.join();
+        } catch (InterruptedException ie) {
+            throw new TCPSessionBuilderException
+                ("tcp-session-builder interrupted");
+        } finally {
+            if (reader != null) reader.close();
+        }
+        for (TCPSessionBuilderException e: errors)
+            if (error == null) error = e;
+        if (error != null) throw error;
+    }
+    
+    /** Read the packets of the packet captor and hand each one over to the
+     * ring buffer of its partition. */
+    private void dispatchPackets(RingPacketCaptor[] rings)
+        throws TCPSessionBuilderException {
+        FlowKey key = new FlowKey();
+        long seed = FlowKey.newSeed();
+        try {
+            captor.setFilter(filter_expression);
+            captor.open();
+            jpcap.packet.Packet packet;
+            while ((packet = captor.read()) != null) {
+                if (!(packet instanceof TCPPacket)) continue;
+                if (!key.set((TCPPacket)packet)) continue;
+                int h = (int)(key.hash(seed) >>> 33);
+                // a partition which has stopped drops its packets
+                rings[h % rings.length].put(packet);
+            }
+        } catch (PacketCaptorException pce) {
+            throw new TCPSessionBuilderException(pce.getMessage());
+        } finally {
+            captor.close();
+        }
+    }
+    
     /** Build TCP sessions from the given network packets source. */
     public void buildSessions() throws TCPSessionBuilderException {
         if (captor == null)
             throw new TCPSessionBuilderException
             ("tcp-session-builder:no valid resource locator provided");
         try {
+            captor.setFilter(filter_expression);
             captor.open();
         } catch (PacketCaptorException pce) {
             throw new TCPSessionBuilderException(pce.getMessage());
@@ -214,50 +406,237 @@ public class TCPSessionBuilder implements Runnable {
             captor.setResourceIdentifier(resource_id.substring(2));
     }
     
+    /** Set several resource identifiers for network packets capturing. Each
+     * resource is read and decoded on its own thread and the packets of all
+     * resources are merged into a single stream ordered by capture time, so
+     * that TCP sessions spanning several resources are rebuilt correctly. The
+     * resources of a rotated capture set are read one after another, the
+     * open TCP sessions being kept from one resource to the next. */
+    public void setResourceIdentifiers(Collection<String> resource_ids) {
+        if (resource_ids == null || resource_ids.isEmpty()) return;
+        if (resource_ids.size() == 1) {
+            setResourceIdentifier(resource_ids.iterator().next());
+            return;
+        }
+        LinkedList<PacketCaptor> captors = new LinkedList<PacketCaptor>();
+        LinkedList<String> ids = new LinkedList<String>();
+        for (String resource_id: resource_ids) {
+            PacketCaptor c = createCaptor(resource_id, null);
+            if (c == null) continue;
+            captors.add(c);
+            ids.add(resource_id.substring(2));
+        }
+        MergingPacketCaptor m = new MergingPacketCaptor(captors);
+        m.setResourceIdentifiers(ids);
+        captor = m;
+    }
+    
+    /** Set the number of partitions of the flows rebuilt in parallel, each
+     * one on its own thread. A single plain pcap file read without native
+     * library is also decoded in parallel. */
+    public void setPartitionCount(int partition_count) {
+        this.partition_count = Math.max(1, partition_count);
+    }
+    
+    /** Retrieve the number of partitions of the flows rebuilt in parallel. */
+    public int getPartitionCount() {
+        return partition_count;
+    }
+    
+    /** Set the maximum number of opening TCP sessions, i.e. 3-way handshake
+     * not complete: the oldest one is given up when a new one starts. With
+     * compact records, the SYN and SYN/ACK segments of an opening session are
+     * recorded in a few words and the TCP session is only built when another
+     * segment of the flow is received; a reset flow is then given up at
+     * once. */
+    public void setSynSessions(int max_syn_sessions, boolean compact) {
+        syn_sessions = new SynTable(max_syn_sessions);
+        compact_syn = compact;
+    }
+    
+    /** Retrieve the maximum number of opening TCP sessions. */
+    public int getMaxSynSessions() {
+        return syn_sessions.capacity();
+    }
+    
+    /** Set whether the TCP sessions whose handshake has not been captured,
+     * e.g. already established when the capture started, are picked up from
+     * their first data segment which looks like SMTP. Such sessions are
+     * marked as partial. */
+    public void setMidStreamPickup(boolean mid_stream) {
+        this.mid_stream = mid_stream;
+    }
+    
+    /** Set the listener following the payload of the open TCP sessions: it is
+     * called as soon as in order payload segments are added to a session, on
+     * the thread rebuilding the session, so that the payload can be processed
+     * before the session is closed. */
+    public void setSessionListener(TCPSessionListener listener) {
+        this.listener = listener;
+    }
+    
+    /** Set whether the TCP sessions are classified from the first bytes of
+     * their payload: a server reply (e.g. a 220 banner) or a client speaking
+     * first with an SMTP command (e.g. EHLO) tells an SMTP flow, so that SMTP
+     * is also found on other ports. The payload of the other flows is
+     * dropped as soon as they are classified, and they are only counted: the
+     * sessions delivered hold no payload. The sessions whose server port is
+     * one of the given SMTP ports (e.g. 25, 465 and 587) are always kept. */
+    public void setFlowClassification(boolean classify_flows,
+                                      int[] smtp_ports) {
+        this.classify_flows = classify_flows;
+        this.smtp_ports = (smtp_ports != null) ? smtp_ports.clone() :
+                                                 new int[0];
+    }
+    
+    /** Return true if the TCP sessions are classified from the first bytes of
+     * their payload. */
+    public boolean isFlowClassification() {
+        return classify_flows;
+    }
+    
+    /** Return true if the TCP sessions whose handshake has not been captured
+     * are picked up. */
+    public boolean isMidStreamPickup() {
+        return mid_stream;
+    }
+    
+    /** Set the idle timeout (in msec) of the TCP sessions in the given TCP
+     * state: an open TCP session is delivered once it has received no packet
+     * for the shortest timeout of the states of its entities. An opening TCP
+     * session is given up once its handshake has lasted longer than the
+     * SYN_SENT timeout. */
+    public void setIdleTimeout(TCPState state, long timeout) {
+        idle_timeouts[state.index()] = Math.max(0, timeout);
+    }
+    
+    /** Retrieve the idle timeout (in msec) of the TCP sessions in the given
+     * TCP state. */
+    public long getIdleTimeout(TCPState state) {
+        return idle_timeouts[state.index()];
+    }
+    
+    /** Set the maximum number of out of order bytes buffered by each
+     * direction of a TCP flow, a flow holding up to twice as many, and by all
+     * the TCP flows together, and the policy applied to a hole in a flow when
+     * one of these limits is exceeded. The limits are shared by all the TCP
+     * session builders. */
+    public static void setReassemblyLimits(int direction_bytes,
+                                           long global_bytes,
+                                           TCPHolePolicy policy) {
+        TCPReassemblyBuffer.setLimits(direction_bytes, global_bytes, policy);
+    }
+    
+    /** Retrieve the maximum number of out of order bytes buffered by each
+     * direction of a TCP flow. */
+    public static int getReassemblyDirectionLimit() {
+        return TCPReassemblyBuffer.getDirectionLimit();
+    }
+    
+    /** Retrieve the maximum number of out of order bytes buffered by all the
+     * TCP flows together. */
+    public static long getReassemblyGlobalLimit() {
+        return TCPReassemblyBuffer.getGlobalLimit();
+    }
+    
     /** Retrieve the resource identifier for network packets capturing. */
     public String getResourceIdentifier() {
         return (captor != null) ? captor.getResourceIdentifier() : null;
     }
     
+    /** Set the packet filter expression (e.g. "tcp and port 25 or port 587")
+     * applied by the packet captor: rejected packets are dropped before they
+     * are decoded. The expression is checked immediately. */
+    public void setPacketFilter(String expression)
+        throws TCPSessionBuilderException {
+        if (expression != null && !expression.trim().isEmpty()) {
+            try {
+                new PacketFilter(expression);
+            } catch (PacketCaptorException pce) {
+                throw new TCPSessionBuilderException(pce.getMessage());
+            }
+        }
+        filter_expression = expression;
+    }
+    
+    /** Retrieve the packet filter expression, null if no filter is set. */
+    public String getPacketFilter() {
+        return filter_expression;
+    }
+    
     /** Retrieve the number of TCP packets added to a TCP session. */
     public int getTCPPacketCount() {
-        return tcp_packet_count;
+        int count = tcp_packet_count;
+        for (TCPSessionBuilder b: partitions) count += b.getTCPPacketCount();
+        return count;
     }
     
     /** Retrieve the number of TCP session rebuilt. */
     public int getTCPSessionCount() {
-        return tcp_session_count;
+        int count = tcp_session_count;
+        for (TCPSessionBuilder b: partitions) count += b.getTCPSessionCount();
+        return count;
+    }
+    
+    /** Retrieve the number of TCP sessions picked up after their
+     * handshake. */
+    public int getPartialSessionCount() {
+        int count = partial_session_count;
+        for (TCPSessionBuilder b: partitions)
+            count += b.getPartialSessionCount();
+        return count;
+    }
+    
+    /** Retrieve the number of TCP sessions classified as not SMTP, whose
+     * payload has been dropped. */
+    public int getOtherSessionCount() {
+        int count = other_session_count;
+        for (TCPSessionBuilder b: partitions)
+            count += b.getOtherSessionCount();
+        return count;
     }
     
     /** Retrieve the number of discarded TCP packets. */
     public int discardedPacketCount() {
-        return discarded_pkt_count;
+        int count = discarded_pkt_count;
+        for (TCPSessionBuilder b: partitions) count += b.discardedPacketCount();
+        return count;
     }
     
     /** Retrieve the number of discarded TCP SYN packets. */
     public int discardedSynCount() {
-        return discarded_syn_count;
+        int count = discarded_syn_count;
+        for (TCPSessionBuilder b: partitions) count += b.discardedSynCount();
+        return count;
     }
     
     /** Retrieve the number of discarded TCP FIN packets. */
     public int discardedFinCount() {
-        return discarded_fin_count;
+        int count = discarded_fin_count;
+        for (TCPSessionBuilder b: partitions) count += b.discardedFinCount();
+        return count;
     }
     
     /** Retrieve the number of discarded TCP RST packets */
     public int discardedRstCount() {
-        return discarded_rst_count;
+        int count = discarded_rst_count;
+        for (TCPSessionBuilder b: partitions) count += b.discardedRstCount();
+        return count;
     }
     
     /** Retrieve the number of discarded TCP retransmitted packets. */
     public int discardedRetransCount() {
-        return discarded_retrans_count;
+        int count = discarded_retrans_count;
+        for (TCPSessionBuilder b: partitions) count += b.discardedRetransCount();
+        return count;
     }
     
     /** Retrieve the number of discarded TCP packets other than SYN, FIN and
      * RST. */
     public int discardedOtherCount() {
-        return discarded_other_count;
+        int count = discarded_other_count;
+        for (TCPSessionBuilder b: partitions) count += b.discardedOtherCount();
+        return count;
     }
     
     /** Add a packet to a TCP session.*/
@@ -267,10 +646,7 @@ public class TCPSessionBuilder implements Runnable {
             tcp_packet = (TCPPacket)p;
         } catch (ClassCastException cce) {}
         if (tcp_packet == null) return;
-        t_session_id = new TCPSessionID(tcp_packet.src_ip,
-                                        tcp_packet.dst_ip,
-                                        tcp_packet.src_port,
-                                        tcp_packet.dst_port);
+        if (!t_session_id.set(tcp_packet)) return;
         // search for the session identifier in the not yet opened sessions
         // buffer
         if ((t_session = w_sessions.get(t_session_id)) != null) {
@@ -283,38 +659,55 @@ public class TCPSessionBuilder implements Runnable {
                 discarded_retrans_count++;
                 discarded_pkt_count++;
             }
+            notifyListener(t_session, tcp_packet);
+            // deliver the session as soon as it is closed
+            if (!t_session.isOpen()) {
+                w_sessions.remove(t_session_id);
+                deliverSession(t_session);
+            } else {
+                // a state with a shorter idle timeout brings the expiry
+                // forward
+                long deadline = deadline(t_session);
+                if (deadline < t_session.expiry_time)
+                    setTimer(t_session_id.copy(), t_session, deadline);
+            }
         // search for the session identifier in the already opened sessions
         // buffer
-        } else if ((t_session = in_buff_sessions.get(t_session_id)) != null) {
-            // add packet to session
-            if (!t_session.addPacket(tcp_packet)) { // lost or duplicate packet
-                LOGGER_JUNK.fine(new StringBuilder(100).
-                                 append("(R)").
-                                 append(tcp_packet.toString()).
-                                 append("\n").toString());
-                discarded_retrans_count++;
-                discarded_pkt_count++;
-            }
-            // if the session has completed the TCP three-way handshake,
-            // transfer it to the opened sessions buffer
-            if (t_session.hasSyn()) {
-                in_buff_sessions.remove(t_session_id);
-                in_queue_sessions.remove(t_session_id);
-                w_sessions.put(t_session_id, t_session);
+        } else if ((t_syn = syn_sessions.get(t_session_id)) != null) {
+            // keep the handshake segments in the compact record as long as
+            // possible, then build the TCP session from the record
+            if (!t_syn.record(tcp_packet, t_session_id.isReversed())) {
+                if (t_syn.session == null && tcp_packet.rst) {
+                    // the flow is reset before any TCP session is built
+                    syn_sessions.remove(t_syn);
+                } else {
+                    if (t_syn.session == null)
+                        t_syn.open(tcp_packet, t_session_id.isReversed());
+                    addOpeningPacket(tcp_packet);
+                }
             }
         } else {
             // create new session
             if (TCPSession.isValidFirstPacket(tcp_packet)) {
-                if (in_queue_sessions.size() == MAX_SYN_SESSIONS)
-                    in_buff_sessions.remove(in_queue_sessions.pollFirst());
-                (t_session = new TCPSession()).addPacket(tcp_packet);
-                in_buff_sessions.put(t_session_id, t_session);
-                in_queue_sessions.addLast(t_session_id);
-                // record source IPs and the number of sessions issued
-                if (src_ips.containsKey(t_session.getSourceIP()))
-                    src_ips.put(t_session.getSourceIP(), 
-                                src_ips.get(t_session.getSourceIP()) + 1);
-                else src_ips.put(t_session.getSourceIP(), 1);
+                if (syn_sessions.isFull()) {
+                    SynEntry evicted = syn_sessions.evict();
+                    if (evicted.session != null) evicted.session.release();
+                }
+                t_syn = syn_sessions.add(t_session_id, tcp_packet.sec * 1000 +
+                                                       tcp_packet.usec / 1000);
+                if (!compact_syn ||
+                    !t_syn.record(tcp_packet, t_session_id.isReversed()))
+                    (t_syn.session = new TCPSession()).addPacket(tcp_packet);
+                countSourceIP(tcp_packet.src_ip);
+            // pick up an SMTP session whose handshake has not been captured
+            } else if (mid_stream &&
+                       TCPSession.isValidMidStreamPacket(tcp_packet)) {
+                (t_session = new TCPSession()).pickUp(tcp_packet);
+                notifyListener(t_session, tcp_packet);
+                w_sessions.put(t_session_id, t_session);
+                setTimer(t_session_id.copy(), t_session, deadline(t_session));
+                countSourceIP(t_session.getSourceIP());
+                partial_session_count++;
             // invalid packet for current sessions and for a new session, drop
             } else {
                 discarded_pkt_count++;
@@ -328,76 +721,246 @@ public class TCPSessionBuilder implements Runnable {
                                  append("\n").toString());
             }
         }
-        Iterator<TCPSession> it = w_sessions.values().iterator();
-        long t_duration = -1;
-        while (it.hasNext()) {
-            t_session = it.next();
-            t_duration =
-                t_session.getDuration(tcp_packet.sec, tcp_packet.usec);
-            if (!t_session.isOpen() || t_duration > max_duration) {
-                try {
-                    //System.out.println(t_session);
-                    LOGGER_SESSION.fine(new StringBuilder(100).
-                                        append(t_session.toString()).
-                                        append("\n").toString());
-                    q_sessions.put(t_session);
-                    it.remove();
-                    tcp_session_count++;
-                    if (!t_session.isOpen()) {
-                        // compute the mean duration using a EWMA
-                        mean_duration = (1 - ALPHA) * mean_duration +
-                                        ALPHA * t_session.getDuration();
-                        // compute the mean deviation using a EWMA
-                        dev_duration = (1 - BETA) * dev_duration +
-                                       BETA * Math.abs(t_session.getDuration() -
-                                                       mean_duration);
-                        // compute the maximum duration of a TCP session
-                        max_duration = mean_duration + DEV_MUL * dev_duration;
-                        max_duration = (max_duration > MIN_DURATION) ?
-                            max_duration : MIN_DURATION;
-                    }
-                } catch (Exception e) {
-                    throw new TCPSessionBuilderException
-                    ("tcp-session-builder:unable to deliver more TCP sessions ("
-                    + e.getMessage() + ")");
-                }
+        expireSessions(tcp_packet.sec * 1000 + tcp_packet.usec / 1000);
+        tcp_packet_count++;
+    }
+    
+    /** Add a packet to the TCP session of the current opening TCP session and
+     * promote it to the opened sessions once the 3-way handshake is
+     * complete. */
+    private void addOpeningPacket(TCPPacket tcp_packet)
+        throws TCPSessionBuilderException {
+        t_session = t_syn.session;
+        // add packet to session
+        if (!t_session.addPacket(tcp_packet)) { // lost or duplicate packet
+            LOGGER_JUNK.fine(new StringBuilder(100).
+                             append("(R)").
+                             append(tcp_packet.toString()).
+                             append("\n").toString());
+            discarded_retrans_count++;
+            discarded_pkt_count++;
+        }
+        notifyListener(t_session, tcp_packet);
+        // if the session has completed the TCP three-way handshake,
+        // transfer it to the opened sessions buffer
+        if (t_session.hasSyn()) {
+            syn_sessions.remove(t_syn);
+            if (t_session.isOpen()) {
+                w_sessions.put(t_session_id, t_session);
+                setTimer(t_syn.key, t_session, deadline(t_session));
+            } else {
+                deliverSession(t_session);
             }
         }
-        tcp_packet_count++;
+    }
+    
+    /** Notify the session listener, if any, that the given packet carrying
+     * data has been added to the given TCP session. The session is first
+     * classified, if enabled: the listener does not follow the sessions which
+     * are not SMTP. */
+    private void notifyListener(TCPSession s, TCPPacket tcp_packet) {
+        if (tcp_packet.data == null || tcp_packet.data.length == 0) return;
+        if (classify_flows && s.getFlowClass() == TCPFlowClass.UNKNOWN &&
+            s.classify(isSMTPPort(s.getDestinationPort())) ==
+            TCPFlowClass.OTHER)
+            other_session_count++;
+        if (listener != null && s.getFlowClass() != TCPFlowClass.OTHER)
+            listener.segmentsAdded(s);
+    }
+    
+    /** Return true if the given port is one of the SMTP ports. */
+    private boolean isSMTPPort(int port) {
+        for (int p: smtp_ports)
+            if (p == port) return true;
+        return false;
+    }
+    
+    /** Record a new TCP session issued by the given source IP. */
+    private void countSourceIP(InetAddress ip) {
+        Integer count = src_ips.get(ip);
+        src_ips.put(ip, (count == null) ? 1 : count + 1);
+    }
+    
+    /** Deliver the open TCP sessions which have been idle longer than the
+     * timeout of their state, or which have lasted longer than the maximum
+     * duration, at the given capture time (in msec), and give up the opening
+     * TCP sessions whose handshake has timed out. Only the sessions whose
+     * timer has fired are visited. */
+    private void expireSessions(long now) throws TCPSessionBuilderException {
+        SessionTimer timer;
+        while ((timer = timers.peek()) != null && now > timer.deadline) {
+            timers.poll();
+            t_session = w_sessions.get(timer.id);
+            // skip the timers of the sessions already delivered and the
+            // timers replaced by an earlier one
+            if (t_session != timer.session ||
+                t_session.expiry_time != timer.deadline) continue;
+            // a session which has received packets since the timer was set is
+            // not idle yet: its timer is set again
+            long deadline = deadline(t_session);
+            if (now > deadline) {
+                w_sessions.remove(timer.id);
+                deliverSession(t_session);
+            } else {
+                timer.deadline = t_session.expiry_time = deadline;
+                timers.add(timer);
+            }
+        }
+        long syn_timeout = idle_timeouts[TCPState.SYN_SENT.index()];
+        while ((t_syn = syn_sessions.oldest()) != null &&
+               now - t_syn.start_time > syn_timeout) {
+            syn_sessions.remove(t_syn);
+            if (t_syn.session != null) t_syn.session.release();
+        }
+    }
+    
+    /** Set the expiry timer of the given open TCP session to the given
+     * deadline (in msec). */
+    private void setTimer(FlowKey id, TCPSession s, long deadline) {
+        s.expiry_time = deadline;
+        timers.add(new SessionTimer(id, s, deadline));
+    }
+    
+    /** Retrieve the capture time (in msec) after which the given open TCP
+     * session expires: the end of its idle timeout or of the maximum
+     * duration, whichever comes first. */
+    private long deadline(TCPSession s) {
+        long idle = Math.min(idle_timeouts[s.getSourceState().index()],
+                             idle_timeouts[s.getDestinationState().index()]);
+        return Math.min(s.getLastTime() + idle,
+                        s.getStartTime() + (long)max_duration);
+    }
+    
+    /** Deliver a closed or timed out TCP session to the TCP sessions
+     * container. The duration of closed sessions updates the maximum
+     * duration of a TCP session. */
+    private void deliverSession(TCPSession s)
+        throws TCPSessionBuilderException {
+        try {
+            LOGGER_SESSION.fine(new StringBuilder(100).
+                                append(s.toString()).
+                                append("\n").toString());
+            s.trim();
+            q_sessions.put(s);
+        } catch (Exception e) {
+            throw new TCPSessionBuilderException
+            ("tcp-session-builder:unable to deliver more TCP sessions ("
+            + e.getMessage() + ")");
+        }
+        tcp_session_count++;
+        if (!s.isOpen()) {
+            // compute the mean duration using a EWMA
+            mean_duration = (1 - ALPHA) * mean_duration +
+                            ALPHA * s.getDuration();
+            // compute the mean deviation using a EWMA
+            dev_duration = (1 - BETA) * dev_duration +
+                           BETA * Math.abs(s.getDuration() - mean_duration);
+            // compute the maximum duration of a TCP session
+            max_duration = mean_duration + DEV_MUL * dev_duration;
+            max_duration = (max_duration > MIN_DURATION) ?
+                max_duration : MIN_DURATION;
+        }
     }
     
     /** Create a new network data captor for capturing from the given network
      * resource identifier. The type of captor is determined with a special
      * marker added appended to the beginning of the identifier, e.g. "p:"
-     * stands for pcap file and "i:" stands for network interface. */ 
+     * stands for capture file read without native library, "j:" stands for
+     * pcap file read through jpcap and "i:" stands for network interface.
+     * The format of a capture file (pcap or pcapng, plain or gzip-compressed)
+     * is recognized from its magic bytes. */ 
     private void newCaptor(String resource_id) {
+        captor = createCaptor(resource_id, captor);
+    }
+    
+    /** Create a network data captor for capturing from the given network
+     * resource identifier (see newCaptor). The given current captor is
+     * returned if it is of the right type. */
+    private static PacketCaptor createCaptor(String resource_id,
+                                             PacketCaptor current) {
         if (resource_id == null ||
-            (resource_id != null && resource_id.length() < 2)) return;
+            (resource_id != null && resource_id.length() < 2)) return current;
         char id_type = resource_id.charAt(0);
         switch (id_type) {
             case 'p':
-                if (!(captor instanceof PCAPFileReader))
-                    captor = new PCAPFileReader();
+                switch (CaptureFileFormat.detect(resource_id.substring(2))) {
+                    case PCAPNG:
+                    case PCAPNG_GZIP:
+                        if (!(current instanceof PCAPNGFileReader))
+                            current = new PCAPNGFileReader();
+                        break;
+                    case PCAP_GZIP:
+                        if (!(current instanceof StreamPCAPFileReader))
+                            current = new StreamPCAPFileReader();
+                        break;
+                    default:
+                        if (!(current instanceof MappedPCAPFileReader))
+                            current = new MappedPCAPFileReader();
+                        break;
+                }
+                break;
+            case 'j':
+                if (!(current instanceof PCAPFileReader))
+                    current = new PCAPFileReader();
                 break;
             default:
-                captor = null;
+                current = null;
                 break;
         }
+        return current;
     }
     
     /** Print TCP session builder execution information in the log. */
     private void logReport() {
         LOGGER.info("---------------TCP SUMMARY BEGIN-----------------\n");
-        LOGGER.info("TCP PACKET COUNT  = " + tcp_packet_count + "\n");
-        LOGGER.info("TCP SESSION COUNT = " + tcp_session_count + "\n");
-        LOGGER.info("DISCARDED PACKETS = " + discarded_pkt_count + "\n");
-        LOGGER.info("              SYN = " + discarded_syn_count + "\n");
-        LOGGER.info("              FIN = " + discarded_fin_count + "\n");
-        LOGGER.info("              RST = " + discarded_rst_count + "\n");
-        LOGGER.info("          RETRANS = " + discarded_retrans_count + "\n");
-        LOGGER.info("            OTHER = " + discarded_other_count + "\n");
+        LOGGER.info("TCP PACKET COUNT  = " + getTCPPacketCount() + "\n");
+        LOGGER.info("TCP SESSION COUNT = " + getTCPSessionCount() + "\n");
+        LOGGER.info("  PARTIAL SESSIONS = " + getPartialSessionCount() + "\n");
+        LOGGER.info("    OTHER SESSIONS = " + getOtherSessionCount() + "\n");
+        LOGGER.info("DISCARDED PACKETS = " + discardedPacketCount() + "\n");
+        LOGGER.info("              SYN = " + discardedSynCount() + "\n");
+        LOGGER.info("              FIN = " + discardedFinCount() + "\n");
+        LOGGER.info("              RST = " + discardedRstCount() + "\n");
+        LOGGER.info("          RETRANS = " + discardedRetransCount() + "\n");
+        LOGGER.info("            OTHER = " + discardedOtherCount() + "\n");
         LOGGER.info("       IP SOURCES = " + src_ips + "\n");
         LOGGER.info("------------------SUMMARY END--------------------\n");
     }
     
 }
+
+/**
+ * The expiry timer of an open TCP session. The deadline of a session moves
+ * forward with each packet it receives: rather than being updated on each
+ * packet, the timer fires at the deadline known when it was set and is then
+ * set again if the session has received packets meanwhile.
+ */
+class SessionTimer implements Comparable<SessionTimer> {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The TCP session identifier */
+    FlowKey id;
+    /** The TCP session */
+    TCPSession session;
+    /** The capture time after which the timer fires (in msec) */
+    long deadline;
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new timer for the given TCP session. */
+    SessionTimer(FlowKey id, TCPSession session, long deadline) {
+        this.id = id;
+        this.session = session;
+        this.deadline = deadline;
+    }
+    
+    /** METHODS */
+    
+    /** Compare the deadline of both timers. */
+    public int compareTo(SessionTimer o) {
+        return (deadline < o.deadline) ? -1 :
+               (deadline > o.deadline) ? 1 : 0;
+    }
+    
+}
@@ -0,0 +1,23 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * Interface for the objects following the payload of the TCP sessions while
+ * they are rebuilt, i.e. before they are closed or expire. The listener is
+ * called on the thread rebuilding the session, each time in order payload
+ * segments may have been added to it.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+public interface TCPSessionListener {
+    
+    /** Called when payload segments may have been added to the given open TCP
+     * session (see TCPSession.getSegmentCount). */
+    public void segmentsAdded(TCPSession session);
+    
+}
@@ -34,7 +34,7 @@ public enum TCPState {
     }
     
     /** Return the state index. */
-    private int index() {
+    int index() {
         return index;
     }
     
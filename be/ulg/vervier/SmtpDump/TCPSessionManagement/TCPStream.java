@@ -0,0 +1,110 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class represents the in-order payload bytes sent by one entity of a TCP
+ * session, stored contiguously in a growable byte buffer. The bytes already
+ * processed may be discarded from the beginning of the stream: the offsets in
+ * the stream are not changed, the buffer only holds the bytes from the stream
+ * base on.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.TCPSessionManagement;
+
+import java.nio.charset.Charset;
+
+public class TCPStream {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The stream bytes from the stream base, valid up to the stream length */
+    private byte[] data;
+    /** The number of bytes of the stream, which may exceed the capacity of
+     * a buffer once bytes are discarded */
+    private long length;
+    /** The offset of the first byte kept in the buffer */
+    private long base;
+    /** The initial capacity of a stream */
+    private static final int INITIAL_CAPACITY = 256;
+    /** The maximum number of bytes held by a stream, the largest array size
+     * allowed by the virtual machines */
+    static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+    /** An empty buffer */
+    private static final byte[] EMPTY = new byte[0];
+    
+    /** CONSTRUCTORS */
+    
+    /** Create a new empty TCP stream. */
+    public TCPStream() {
+        data = EMPTY;
+        length = 0;
+        base = 0;
+    }
+    
+    /** METHODS */
+    
+    /** Retrieve the number of bytes held by the stream, i.e. not
+     * discarded. */
+    long size() { return length - base; }
+    
+    /** Append the given bytes to the stream, which must hold at most
+     * MAX_CAPACITY bytes. */
+    void append(byte[] b) {
+        int size = (int)(length - base);
+        long needed = (long)size + b.length;
+        if (needed > MAX_CAPACITY)
+            throw new IllegalStateException("tcp-stream:stream buffer full");
+        if (needed > data.length) {
+            long c = Math.max(INITIAL_CAPACITY, data.length);
+            while (c < needed) c = Math.min(c << 1, MAX_CAPACITY);
+            byte[] t = new byte[(int)c];
+            System.arraycopy(data, 0, t, 0, size);
+            data = t;
+        }
+        System.arraycopy(b, 0, data, size, b.length);
+        length += b.length;
+    }
+    
+    /** Discard the bytes of the stream before the given offset. The buffer
+     * is kept for the next bytes appended, its capacity being only released
+     * by trim. */
+    void discard(long offset) {
+        if (offset <= base) return;
+        offset = Math.min(offset, length);
+        int size = (int)(length - offset);
+        if (size > 0)
+            System.arraycopy(data, (int)(offset - base), data, 0, size);
+        base = offset;
+    }
+    
+    /** Release the unused capacity of the stream. */
+    void trim() {
+        int size = (int)(length - base);
+        if (data.length == size) return;
+        byte[] t = (size == 0) ? EMPTY : new byte[size];
+        System.arraycopy(data, 0, t, 0, size);
+        data = t;
+    }
+    
+    /** Retrieve the number of bytes of the stream. */
+    public long length() { return length; }
+    
+    /** Retrieve the offset of the first byte kept, i.e. the number of bytes
+     * discarded from the beginning of the stream. */
+    public long base() { return base; }
+    
+    /** Retrieve the buffer holding the stream bytes from the stream base,
+     * valid up to the stream length: the byte at a given offset of the stream
+     * is at the offset minus the stream base in the buffer. */
+    public byte[] array() { return data; }
+    
+    /** Decode the given range of the stream with the given charset. */
+    public String toString(long offset, int len, Charset charset) {
+        return new String(data, (int)(offset - base), len, charset);
+    }
+    
+}
@@ -0,0 +1,80 @@
+/**
+ * Final-year project, University of Liège
+ * Automated analysis and detection of spamming botnets.
+ * 
+ * @author  Pierre-Antoine Vervier
+ * @version May, 2010
+ * 
+ * This class implements the search of a byte in a buffer, e.g. of the line
+ * terminators in a payload stream. The buffer is read a long (8 bytes) at a
+ * time and the 8 bytes are compared to the byte searched at once (SWAR, SIMD
+ * within a register): the bytes of the long xor-ed with the byte searched
+ * are zero where they match, and the zero bytes of a long are found by a few
+ * arithmetic and bitwise operations, without any carry from one byte to the
+ * next. The ranges shorter than MIN_WORD_SCAN are read byte by byte.
+ * 
+ */
+
+package be.ulg.vervier.SmtpDump.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public final class ByteScanner {
+    
+    /** INSTANCE VARIABLES */
+    
+    /** The minimum length of a range read a long at a time */
+    private static final int MIN_WORD_SCAN = 16;
+    /** The long whose 8 bytes are 1 */
+    private static final long ONES = 0x0101010101010101L;
+    /** The long whose 8 bytes are 0x7F */
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    
+    /** CONSTRUCTORS */
+    
+    /** This class only holds static methods. */
+    private ByteScanner() {}
+    
+    /** METHODS */
+    
+    /** Retrieve the index of the first occurrence of the given byte in the
+     * given buffer, between the given indexes (the end excluded), or -1 if
+     * there is no such byte. */
+    public static int indexOf(byte[] b, int from, int to, byte c) {
+        if (to - from < MIN_WORD_SCAN) {
+            for (int i = from; i < to; i++)
+                if (b[i] == c) return i;
+            return -1;
+        }
+        return indexOf(ByteBuffer.wrap(b), from, to, c);
+    }
+    
+    /** Retrieve the index of the first occurrence of the given byte in the
+     * given buffer, between the given absolute indexes (the end excluded), or
+     * -1 if there is no such byte. The position of the buffer is left
+     * unchanged. */
+    public static int indexOf(ByteBuffer buf, int from, int to, byte c) {
+        long pattern = (c & 0xFFL) * ONES;
+        boolean big_endian = buf.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i <= to - 8; i += 8) {
+            long t = zeroBytes(buf.getLong(i) ^ pattern);
+            if (t != 0)
+                return i + ((big_endian ? Long.numberOfLeadingZeros(t) :
+                             Long.numberOfTrailingZeros(t)) >>> 3);
+        }
+        for (; i < to; i++)
+            if (buf.get(i) == c) return i;
+        return -1;
+    }
+    
+    /** Retrieve a long whose bytes have their high bit set where the bytes
+     * of the given long are zero, the other bits being zero. */
+    private static long zeroBytes(long x) {
+        // the low 7 bits of a non-zero byte added to 0x7F carry into its
+        // high bit, which is never carried into the next byte
+        return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+    }
+    
+}